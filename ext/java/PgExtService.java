@@ -3,6 +3,8 @@ import java.io.IOException;
 import org.jruby.*;
 import org.jruby.anno.JRubyMethod;
 import org.jruby.pg.Connection;
+import org.jruby.pg.NotificationHub;
+import org.jruby.pg.ReplicationStream;
 import org.jruby.pg.Result;
 import org.jruby.pg.internal.ConnectionStatus;
 import org.jruby.pg.internal.LargeObjectAPI;
@@ -98,6 +100,8 @@ public class PgExtService implements BasicLibraryService {
     pg.includeModule(pgConstants);
     Connection.define(ruby, pg, pgConstants);
     Result.define(ruby, pg, pgConstants);
+    NotificationHub.define(ruby, pg);
+    ReplicationStream.define(ruby, pg);
   }
 
   public static RubyClass defineErrorClass(Ruby ruby, String className, String baseClassCode) {
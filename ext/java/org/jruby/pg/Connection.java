@@ -1,6 +1,8 @@
 package org.jruby.pg;
 
-import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.Writer;
 import java.nio.channels.SelectableChannel;
@@ -10,8 +12,10 @@ import java.security.GeneralSecurityException;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.jcodings.Encoding;
+import org.jcodings.specific.UTF8Encoding;
 import org.jruby.*;
 import org.jruby.anno.JRubyMethod;
 import org.jruby.exceptions.RaiseException;
@@ -41,6 +45,9 @@ public class Connection extends RubyObject {
   private  PostgresqlConnection postgresConnection;
   private Properties props;
   private IRubyObject proc;
+  // false if errors are raised without capturing a backtrace, see
+  // Utils.errorBacktrace()
+  private boolean errorBacktrace = true;
 
   private PostgresqlString BEGIN_QUERY = new PostgresqlString("BEGIN");
   private PostgresqlString COMMIT_QUERY = new PostgresqlString("COMMIT");
@@ -48,8 +55,11 @@ public class Connection extends RubyObject {
 
   private NoticeReceiver defaultReceiver;
 
-  // the cached rubyIO that is returned by socket_io
+  // the cached rubyIO that is returned by socket_io and the socket it
+  // wraps, the socket changes if connecting to a host fails and the
+  // next host is tried
   private RubyIO rubyIO;
+  private SelectableChannel rubyIOSocket;
 
   static {
     postgresEncodingToRubyEncoding.put("BIG5",          "Big5");
@@ -157,9 +167,10 @@ public class Connection extends RubyObject {
 
   @JRubyMethod(meta = true, required = 1, argTypes = {RubyArray.class})
   public static IRubyObject escape_bytea(ThreadContext context, IRubyObject self, IRubyObject array) {
-    byte[] bytes = array.convertToString().getBytes();
-    bytes = PostgresqlConnection.escapeBytesStatic(bytes);
-    return context.runtime.newString(new ByteList(bytes));
+    ByteList bytes = array.convertToString().getByteList();
+    byte[] escaped = PostgresqlConnection.escapeBytesStatic(bytes.getUnsafeBytes(), bytes.getBegin(),
+                                                            bytes.getRealSize());
+    return context.runtime.newString(new ByteList(escaped, false));
   }
 
   @JRubyMethod(meta = true)
@@ -206,37 +217,17 @@ public class Connection extends RubyObject {
   }
 
   /**
-   * binary data is received from the jdbc driver after being unescaped
-   *
-   * @param context
-   * @param _array
-   * @return
+   * Decode the text representation of a bytea value, in either the hex
+   * or the escape format
    */
   public static IRubyObject unescapeBytes(ThreadContext context, IRubyObject _array) {
-    RubyString string = (RubyString) _array;
-    byte[] bytes = string.getBytes();
-    if(bytes[0] == '\\' && bytes[1] == 'x') {
-      ByteArrayOutputStream out = new ByteArrayOutputStream();
-      for(int i = 2; i < bytes.length; i += 2) {
-        int b = charToInt(bytes[i]) * 16 + charToInt(bytes[i + 1]);
-        out.write(b);
-      }
-      return context.runtime.newString(new ByteList(out.toByteArray()));
-    } else {
-      return _array;
-    }
-  }
-
-  private static int charToInt(byte b) {
-    if(Character.isLetter(b)) {
-      return Character.toUpperCase(b) - 'A' + 10;
-    } else {
-      return b - '0';
-    }
+    ByteList bytes = ((RubyString) _array).getByteList();
+    byte[] unescaped = Bytea.unescape(bytes.getUnsafeBytes(), bytes.getBegin(), bytes.getRealSize());
+    return context.runtime.newString(new ByteList(unescaped, false));
   }
 
   @SuppressWarnings("unchecked")
-  private static Properties parse_args(ThreadContext context, IRubyObject[] args) {
+  static Properties parse_args(ThreadContext context, IRubyObject[] args) {
     Properties argumentsHash = new Properties();
     if(args.length == 0) {
       return argumentsHash;
@@ -287,6 +278,38 @@ public class Connection extends RubyObject {
     }
   };
 
+  /**
+   * The error class of each SQLSTATE, looked up in PG::ERROR_CLASSES
+   * once per runtime. Forgotten if classes are added to ERROR_CLASSES
+   */
+  private static class ErrorClassCache {
+    private static final String NAME = "error_class_cache";
+    // the server cannot send more distinct states than that, unless
+    // it is misbehaving
+    private static final int MAX_SIZE = 1024;
+
+    private final RubyHash errors;
+    private final int errorsSize;
+    private final Map<String, RubyClass> classes = new ConcurrentHashMap<String, RubyClass>();
+
+    private ErrorClassCache(RubyHash errors) {
+      this.errors = errors;
+      this.errorsSize = errors.size();
+    }
+
+    static ErrorClassCache get(Ruby ruby) {
+      RubyModule pg = ruby.getModule("PG");
+      RubyHash errors = (RubyHash) pg.getConstant("ERROR_CLASSES");
+      ErrorClassCache cache = (ErrorClassCache) pg.getInternalVariable(NAME);
+      if(cache == null || cache.errors != errors || cache.errorsSize != errors.size()) {
+        // racing threads build equivalent caches
+        cache = new ErrorClassCache(errors);
+        pg.setInternalVariable(NAME, cache);
+      }
+      return cache;
+    }
+  }
+
   private static RubyClass lookupErrorClass(ThreadContext context, String state) {
     Ruby ruby = context.runtime;
 
@@ -294,17 +317,26 @@ public class Connection extends RubyObject {
       return (RubyClass) ruby.getClassFromPath("PG::UnableToSend");
     }
 
-    state = state.toUpperCase();
+    ErrorClassCache cache = ErrorClassCache.get(ruby);
+    RubyClass cached = cache.classes.get(state);
+    if(cached != null) {
+      return cached;
+    }
+
+    String key = state.toUpperCase();
 
-    RubyHash errors = (RubyHash) ruby.getModule("PG").getConstant("ERROR_CLASSES");
-    IRubyObject klass = errors.op_aref(context, ruby.newString(state));
+    RubyHash errors = cache.errors;
+    IRubyObject klass = errors.op_aref(context, ruby.newString(key));
     if(klass.isNil()) {
-      klass = errors.op_aref(context, ruby.newString(state.substring(0, 2)));
+      klass = errors.op_aref(context, ruby.newString(key.substring(0, 2)));
     }
 
     if(klass.isNil()) {
       klass = ruby.getClassFromPath("PG::ServerError");
     }
+    if(cache.classes.size() < ErrorClassCache.MAX_SIZE) {
+      cache.classes.put(state, (RubyClass) klass);
+    }
     return (RubyClass) klass;
   }
 
@@ -365,6 +397,18 @@ public class Connection extends RubyObject {
     return connectSync(context);
   }
 
+  /**
+   * Read the error_backtrace option, an invalid value is reported like
+   * the invalid options of the connection
+   */
+  private void parseErrorBacktrace() throws IOException {
+    try {
+      errorBacktrace = Utils.errorBacktrace(props);
+    } catch(IllegalArgumentException ex) {
+      throw new IOException(ex.getMessage());
+    }
+  }
+
   @JRubyMethod(alias = "reset_poll")
   public IRubyObject connect_poll(ThreadContext context) {
     PollingStatus state = postgresConnection.connectPoll();
@@ -373,8 +417,14 @@ public class Connection extends RubyObject {
 
   @JRubyMethod(alias = {"close"})
   public IRubyObject finish(ThreadContext context) {
+    if(postgresConnection == null) {
+      // only a finished connection is an error, a connection that
+      // failed or was lost must still be finished to release its socket
+      throw newPgErrorCommon(context, "connection is closed", "ConnectionBad",
+                             getClientEncodingAsJavaEncoding(context));
+    }
     try {
-      getConnection(context).close();
+      postgresConnection.close();
       if(rubyIO != null) {
         // close the rubyIO without raising any exceptions fixme: is
         // this the right way to do it ? we need to close the connection
@@ -439,12 +489,12 @@ public class Connection extends RubyObject {
 
   @JRubyMethod
   public IRubyObject host(ThreadContext context) {
-    return context.nil;
+    return context.runtime.newString(getConnection(context).getHost());
   }
 
   @JRubyMethod
   public IRubyObject port(ThreadContext context) {
-    return context.nil;
+    return context.runtime.newFixnum(getConnection(context).getPort());
   }
 
   @JRubyMethod
@@ -490,10 +540,11 @@ public class Connection extends RubyObject {
 
   @JRubyMethod
   public RubyIO socket_io(ThreadContext context) {
-    if(rubyIO == null) {
-      SelectableChannel socket = getConnection(context).getSocket();
+    SelectableChannel socket = getConnection(context).getSocket();
+    if(rubyIO == null || rubyIOSocket != socket) {
       rubyIO = RubyIO.newIO(context.runtime, socket);
       rubyIO.setAutoclose(false);
+      rubyIOSocket = socket;
     }
     return rubyIO;
   }
@@ -515,14 +566,20 @@ public class Connection extends RubyObject {
 
   /******     PG::Connection INSTANCE METHODS: Command Execution     ******/
 
-  @JRubyMethod(alias = {"query", "exec_params", "async_exec", "async_query"}, required = 1, optional = 2)
+  @JRubyMethod(alias = {"query", "exec_params", "async_exec", "async_query"}, required = 1, optional = 3)
   public IRubyObject exec(ThreadContext context, IRubyObject[] args, Block block) {
     if(postgresConnection == null) {
       throw newPgError(context, "closed connection used", null);
     }
 
+    RubyHash options = optionsHash(args);
+    if(options != null) {
+      args = Arrays.copyOf(args, args.length - 1);
+    }
+
     PostgresqlString query = rubyStringAsPostgresqlString(args[0]);
     ResultSet set = null;
+    TimerWheel.Timeout deadline = startDeadline(context, options);
     try {
       if(args.length == 1 || args[1].isNil()) {
         set = postgresConnection.exec(query);
@@ -542,6 +599,8 @@ public class Connection extends RubyObject {
       }
     } catch(IOException sqle) {
       throw newPgError(context, sqle.getLocalizedMessage(), null);
+    } finally {
+      clearDeadline(deadline);
     }
 
     IRubyObject res = createResult(context, set);
@@ -579,10 +638,21 @@ public class Connection extends RubyObject {
     }
   }
 
-  @JRubyMethod(required = 1, optional = 2)
+  @JRubyMethod(required = 1, optional = 3)
   public IRubyObject exec_prepared(ThreadContext context, IRubyObject[] args, Block block) {
+    RubyHash options = optionsHash(args);
+    if(options != null) {
+      args = Arrays.copyOf(args, args.length - 1);
+    }
+
+    TimerWheel.Timeout deadline = startDeadline(context, options);
     try {
-      ResultSet set = execPreparedCommon(context, args, false);
+      ResultSet set;
+      try {
+        set = execPreparedCommon(context, args, false);
+      } finally {
+        clearDeadline(deadline);
+      }
       IRubyObject res = createResult(context, set);
       if(!res.isNil()) {
         ((Result)res).check(context);
@@ -665,9 +735,10 @@ public class Connection extends RubyObject {
 
   @JRubyMethod
   public IRubyObject escape_bytea(ThreadContext context, IRubyObject array) {
-    RubyString str = (RubyString) array;
-    byte[] bytes = PostgresqlConnection.escapeBytesStatic(str.getBytes());
-    return context.runtime.newString(new ByteList(bytes));
+    ByteList bytes = ((RubyString) array).getByteList();
+    byte[] escaped = PostgresqlConnection.escapeBytesStatic(bytes.getUnsafeBytes(), bytes.getBegin(),
+                                                            bytes.getRealSize());
+    return context.runtime.newString(new ByteList(escaped, false));
   }
 
   @JRubyMethod
@@ -810,22 +881,29 @@ public class Connection extends RubyObject {
       if(notification == null) {
         return context.nil;
       }
-      RubyHash hash = new RubyHash(context.runtime);
-
-      RubySymbol relname = context.runtime.newSymbol("relname");
-      RubySymbol pid = context.runtime.newSymbol("be_pid");
-      RubySymbol extra = context.runtime.newSymbol("extra");
-
-      hash.op_aset(context, relname, context.runtime.newString(notification.getCondition()));
-      hash.op_aset(context, pid, context.runtime.newFixnum(notification.getPid()));
-      hash.op_aset(context, extra, context.runtime.newString(notification.getPayload()));
-
-      return hash;
+      return notificationToHash(context, notification);
     } catch(IOException ex) {
       throw newPgError(context, ex, null);
     }
   }
 
+  /**
+   * Convert the notification to the hash returned by #notifies
+   */
+  static RubyHash notificationToHash(ThreadContext context, NotificationResponse notification) {
+    RubyHash hash = new RubyHash(context.runtime);
+
+    RubySymbol relname = context.runtime.newSymbol("relname");
+    RubySymbol pid = context.runtime.newSymbol("be_pid");
+    RubySymbol extra = context.runtime.newSymbol("extra");
+
+    hash.op_aset(context, relname, context.runtime.newString(notification.getCondition()));
+    hash.op_aset(context, pid, context.runtime.newFixnum(notification.getPid()));
+    hash.op_aset(context, extra, context.runtime.newString(notification.getPayload()));
+
+    return hash;
+  }
+
   /******     PG::Connection INSTANCE METHODS: COPY     ******/
 
   @JRubyMethod
@@ -874,6 +952,43 @@ public class Connection extends RubyObject {
     }
   }
 
+  /**
+   * call-seq:
+   *   conn.replication_stream(options = {}) -> PG::ReplicationStream
+   *
+   * Return the stream of a replication connection (replication=database
+   * or replication=true) after START_REPLICATION. The options are
+   * :status_interval, the seconds between status updates (default 10,
+   * 0 disables them), and :max_changes, the maximum number of changes
+   * of a batch yielded by each_transaction (default 10000, 0 yields
+   * each transaction in a single batch)
+   */
+  @JRubyMethod(optional = 1)
+  public IRubyObject replication_stream(ThreadContext context, IRubyObject[] args) {
+    long statusInterval = 10000;
+    int maxChanges = PgOutputDecoder.DEFAULT_MAX_CHANGES;
+    if(args.length > 0 && !args[0].isNil()) {
+      RubyHash options = (RubyHash) args[0];
+      IRubyObject value = options.op_aref(context, context.runtime.newSymbol("status_interval"));
+      if(!value.isNil()) {
+        statusInterval = (long)(((RubyNumeric) value).getDoubleValue() * 1000);
+      }
+      value = options.op_aref(context, context.runtime.newSymbol("max_changes"));
+      if(!value.isNil()) {
+        maxChanges = RubyNumeric.fix2int(value);
+      }
+    }
+
+    try {
+      WalReceiver receiver = new WalReceiver(getConnection(context), statusInterval);
+      RubyClass klass = (RubyClass) context.runtime.getClassFromPath("PG::ReplicationStream");
+      return new ReplicationStream(context.runtime, klass, this, receiver,
+                                   getClientEncodingAsJavaEncoding(context), maxChanges);
+    } catch(IOException ex) {
+      throw newPgError(context, ex, null);
+    }
+  }
+
   /******     PG::Connection INSTANCE METHODS: Control Functions     ******/
 
   @JRubyMethod
@@ -975,6 +1090,46 @@ public class Connection extends RubyObject {
     return oldProc;
   }
 
+  /**
+   * call-seq:
+   *   conn.notice_stats -> Hash
+   *
+   * Return the number of notices :received from the server,
+   * :delivered to the notice receiver, :dropped because too many were
+   * waiting (see the notice_queue_size connection option) and
+   * :rate_limited (see the notice_rate_limit connection option)
+   */
+  @JRubyMethod
+  public IRubyObject notice_stats(ThreadContext context) {
+    NoticeQueue notices = getConnection(context).getNoticeQueue();
+    Ruby runtime = context.runtime;
+    RubyHash stats = RubyHash.newHash(runtime);
+    stats.op_aset(context, runtime.newSymbol("received"), runtime.newFixnum(notices.getReceived()));
+    stats.op_aset(context, runtime.newSymbol("delivered"), runtime.newFixnum(notices.getDelivered()));
+    stats.op_aset(context, runtime.newSymbol("dropped"), runtime.newFixnum(notices.getDropped()));
+    stats.op_aset(context, runtime.newSymbol("rate_limited"), runtime.newFixnum(notices.getRateLimited()));
+    return stats;
+  }
+
+  /**
+   * call-seq:
+   *   conn.ssl_handshake_stats -> Hash
+   *
+   * Return the number of SSL handshakes of this connection that
+   * negotiated a new session (:full) and that resumed a session cached
+   * by an earlier connection to the same server (:resumed). Both are 0
+   * if SSL isn't used
+   */
+  @JRubyMethod
+  public IRubyObject ssl_handshake_stats(ThreadContext context) {
+    PostgresqlConnection conn = getConnection(context);
+    Ruby runtime = context.runtime;
+    RubyHash stats = RubyHash.newHash(runtime);
+    stats.op_aset(context, runtime.newSymbol("full"), runtime.newFixnum(conn.getFullSslHandshakes()));
+    stats.op_aset(context, runtime.newSymbol("resumed"), runtime.newFixnum(conn.getResumedSslHandshakes()));
+    return stats;
+  }
+
   /******     PG::Connection INSTANCE METHODS: Other    ******/
 
   @JRubyMethod()
@@ -1151,12 +1306,55 @@ public class Connection extends RubyObject {
 
   @JRubyMethod(name = {"lo_import", "loimport"})
   public IRubyObject lo_import(ThreadContext context, IRubyObject arg0) {
-    return context.nil;
+    String path = arg0.convertToString().toString();
+    FileInputStream file;
+    try {
+      file = new FileInputStream(path);
+    } catch(IOException e) {
+      throw newPgError(context, "could not open file \"" + path + "\": " + e.getLocalizedMessage(), null);
+    }
+
+    try {
+      int oid = postgresConnection.getLargeObjectAPI().loImport(file.getChannel());
+      return new RubyFixnum(context.runtime, oid);
+    } catch(PostgresqlException e) {
+      throw newPgError(context, "lo_import failed: " + e.getLocalizedMessage(), e.getResultSet());
+    } catch(IOException e) {
+      throw newPgError(context, "lo_import failed: " + e.getLocalizedMessage(), null);
+    } finally {
+      closeQuietly(file);
+    }
   }
 
   @JRubyMethod(name = {"lo_export", "loexport"})
   public IRubyObject lo_export(ThreadContext context, IRubyObject arg0, IRubyObject arg1) {
-    return context.nil;
+    int oid = (Integer) arg0.toJava(Integer.class);
+    String path = arg1.convertToString().toString();
+    FileOutputStream file;
+    try {
+      file = new FileOutputStream(path);
+    } catch(IOException e) {
+      throw newPgError(context, "could not open file \"" + path + "\": " + e.getLocalizedMessage(), null);
+    }
+
+    try {
+      postgresConnection.getLargeObjectAPI().loExport(oid, file.getChannel());
+      return context.nil;
+    } catch(PostgresqlException e) {
+      throw newPgError(context, "lo_export failed: " + e.getLocalizedMessage(), e.getResultSet());
+    } catch(IOException e) {
+      throw newPgError(context, "lo_export failed: " + e.getLocalizedMessage(), null);
+    } finally {
+      closeQuietly(file);
+    }
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    try {
+      closeable.close();
+    } catch(IOException e) {
+      // ignore, the transfer already succeeded or failed
+    }
   }
 
   @JRubyMethod(name = {"lo_open", "loopen"}, required = 1, optional = 1)
@@ -1404,6 +1602,7 @@ public class Connection extends RubyObject {
 
   private IRubyObject connectStart(ThreadContext context, Block block) {
     try {
+      parseErrorBacktrace();
       postgresConnection = PostgresqlConnection.connectStart(props);
       if(block.isGiven()) {
         IRubyObject value = block.yield(context, this);
@@ -1430,14 +1629,20 @@ public class Connection extends RubyObject {
       message = "Unknown error";
     }
 
+    // the message is already UTF-8, only transcode it for the other
+    // client encodings
     RubyString rubyMessage = context.runtime.newString(message);
-    if(encoding != null) {
+    if(encoding != null && encoding != UTF8Encoding.INSTANCE) {
       RubyEncoding rubyEncoding = (RubyEncoding) runtime.getEncodingService().convertEncodingToRubyEncoding(encoding);
       rubyMessage = (RubyString) rubyMessage.encode(context, rubyEncoding);
     }
     Block eBlock = Block.NULL_BLOCK;
     RubyObject exception = (RubyObject) klass.newInstance(context, rubyMessage, eBlock);
     exception.setInstanceVariable("@connection", this);
+    if(!errorBacktrace) {
+      // a backtrace is given so the current one isn't captured
+      return new RaiseException((RubyException) exception, RubyArray.newEmptyArray(runtime));
+    }
     return new RaiseException((RubyException) exception);
   }
 
@@ -1449,7 +1654,7 @@ public class Connection extends RubyObject {
 
     Encoding encoding = getClientEncodingAsJavaEncoding(context);
     RaiseException error = newPgErrorCommon(context, message, sqlstate, encoding);
-    IRubyObject rubyResult = result == null ? context.nil : createResult(context, result);
+    IRubyObject rubyResult = result == null ? context.nil : createResult(context, result, encoding);
     error.getException().setInstanceVariable("@result", rubyResult);
     return error;
   }
@@ -1462,6 +1667,7 @@ public class Connection extends RubyObject {
     try {
       // to make testing possible
       // connection = (BaseConnection)driver.connect(connectionString, props);
+      parseErrorBacktrace();
       postgresConnection = PostgresqlConnection.connectDb(props);
     } catch(IOException ex) {
       throw newPgError(context, ex, null);
@@ -1478,6 +1684,43 @@ public class Connection extends RubyObject {
     return context.nil;
   }
 
+  /**
+   * Return the trailing options hash of exec and friends, e.g.
+   * <code>exec(sql, params, 0, :timeout => 0.2)</code>, or null if
+   * there is none
+   */
+  private static RubyHash optionsHash(IRubyObject[] args) {
+    if(args.length > 1 && args[args.length - 1] instanceof RubyHash) {
+      return (RubyHash) args[args.length - 1];
+    }
+    return null;
+  }
+
+  /**
+   * Start the query deadline given by the :timeout option (in
+   * seconds), returns null if no timeout was given
+   */
+  private TimerWheel.Timeout startDeadline(ThreadContext context, RubyHash options) {
+    if(options == null) {
+      return null;
+    }
+    IRubyObject timeout = options.op_aref(context, context.runtime.newSymbol("timeout"));
+    if(timeout.isNil()) {
+      return null;
+    }
+    long timeoutMillis = (long)(((RubyNumeric) timeout).getDoubleValue() * 1000);
+    if(timeoutMillis <= 0) {
+      throw context.runtime.newArgumentError("timeout must be positive");
+    }
+    return getConnection(context).cancelAfter(timeoutMillis);
+  }
+
+  private void clearDeadline(TimerWheel.Timeout deadline) {
+    if(deadline != null && postgresConnection != null) {
+      postgresConnection.clearCancelAfter(deadline);
+    }
+  }
+
   private Format getFormat(ThreadContext context, IRubyObject [] args) {
     Format resultFormat = Format.Text;
     if(args.length == 3) {
@@ -1531,7 +1774,10 @@ public class Connection extends RubyObject {
     if(set == null) {
       return context.nil;
     }
-    Encoding encoding = getClientEncodingAsJavaEncoding(context);
+    return createResult(context, set, getClientEncodingAsJavaEncoding(context));
+  }
+
+  private IRubyObject createResult(ThreadContext context, ResultSet set, Encoding encoding) {
     RubyClass klass = (RubyClass)context.runtime.getClassFromPath("PG::Result");
     return new Result(context.runtime, klass, this, set, encoding);
   }
@@ -1558,7 +1804,14 @@ public class Connection extends RubyObject {
   }
 
   private PostgresqlString rubyStringAsPostgresqlString(IRubyObject str) {
-    return new PostgresqlString(str.convertToString().getBytes());
+    RubyString string = str.convertToString();
+    ByteList bytes = string.getByteList();
+    if(string.isFrozen() && bytes.getBegin() == 0 && bytes.getRealSize() == bytes.getUnsafeBytes().length) {
+      // a frozen string cannot change, share its bytes instead of
+      // copying them
+      return new PostgresqlString(bytes.getUnsafeBytes());
+    }
+    return new PostgresqlString(string.getBytes());
   }
 
   private IRubyObject setClientEncodingCommon(ThreadContext context, String encoding) throws IOException  {
@@ -0,0 +1,228 @@
+package org.jruby.pg;
+
+import java.io.IOException;
+import java.util.Properties;
+
+import org.jruby.*;
+import org.jruby.anno.JRubyMethod;
+import org.jruby.pg.internal.NotificationDispatcher;
+import org.jruby.pg.internal.NotificationDispatcher.OverflowPolicy;
+import org.jruby.pg.internal.NotificationDispatcher.Subscription;
+import org.jruby.pg.messages.NotificationResponse;
+import org.jruby.runtime.ObjectAllocator;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+
+/**
+ * PG::NotificationHub multiplexes LISTEN subscriptions over a few
+ * dedicated connections, see {@link NotificationDispatcher}
+ */
+@SuppressWarnings("serial")
+public class NotificationHub extends RubyObject {
+  // how long a waiting ruby thread is parked before checking for
+  // thread events (e.g. Thread#raise or Thread#kill)
+  private static final long WAIT_SLICE_MILLIS = 100;
+
+  private NotificationDispatcher dispatcher;
+
+  public NotificationHub(Ruby ruby, RubyClass rubyClass) {
+    super(ruby, rubyClass);
+  }
+
+  public static void define(Ruby ruby, RubyModule pg) {
+    RubyClass hub = pg.defineClassUnder("NotificationHub", ruby.getObject(), HUB_ALLOCATOR);
+    hub.defineAnnotatedMethods(NotificationHub.class);
+
+    RubyClass subscription = hub.defineClassUnder("Subscription", ruby.getObject(),
+                             ObjectAllocator.NOT_ALLOCATABLE_ALLOCATOR);
+    subscription.defineAnnotatedMethods(HubSubscription.class);
+  }
+
+  private static ObjectAllocator HUB_ALLOCATOR = new ObjectAllocator() {
+    @Override
+    public IRubyObject allocate(Ruby ruby, RubyClass rubyClass) {
+      return new NotificationHub(ruby, rubyClass);
+    }
+  };
+
+  /**
+   * call-seq:
+   *   PG::NotificationHub.new(conninfo, options = {})
+   *
+   * Valid options are :connections (number of listener connections,
+   * default 1), :queue_size (capacity of each subscription, default
+   * 1024), :overflow (:drop_oldest or :drop_newest, default
+   * :drop_oldest) and :coalesce_window (seconds, default 0 which
+   * disables coalescing)
+   */
+  @JRubyMethod(required = 1, optional = 1)
+  public IRubyObject initialize(ThreadContext context, IRubyObject[] args) {
+    Properties props = Connection.parse_args(context, new IRubyObject[] {args[0]});
+
+    int connections = 1;
+    int queueSize = 1024;
+    OverflowPolicy policy = OverflowPolicy.DropOldest;
+    long coalesceWindow = 0;
+
+    if(args.length > 1 && !args[1].isNil()) {
+      RubyHash options = (RubyHash) args[1];
+      IRubyObject value = options.op_aref(context, context.runtime.newSymbol("connections"));
+      if(!value.isNil()) {
+        connections = (int) value.convertToInteger().getLongValue();
+      }
+      value = options.op_aref(context, context.runtime.newSymbol("queue_size"));
+      if(!value.isNil()) {
+        queueSize = (int) value.convertToInteger().getLongValue();
+      }
+      value = options.op_aref(context, context.runtime.newSymbol("overflow"));
+      if(!value.isNil()) {
+        String name = value.asJavaString();
+        if(name.equals("drop_newest")) {
+          policy = OverflowPolicy.DropNewest;
+        } else if(!name.equals("drop_oldest")) {
+          throw context.runtime.newArgumentError("unknown overflow policy " + name);
+        }
+      }
+      value = options.op_aref(context, context.runtime.newSymbol("coalesce_window"));
+      if(!value.isNil()) {
+        coalesceWindow = (long)(((RubyNumeric) value).getDoubleValue() * 1000);
+      }
+    }
+
+    try {
+      dispatcher = new NotificationDispatcher(props, connections, queueSize, policy, coalesceWindow);
+    } catch(IOException ex) {
+      throw newConnectionBad(context, ex.getLocalizedMessage());
+    } catch(IllegalArgumentException ex) {
+      throw context.runtime.newArgumentError(ex.getLocalizedMessage());
+    }
+    return context.nil;
+  }
+
+  @JRubyMethod(required = 1)
+  public IRubyObject subscribe(ThreadContext context, IRubyObject channel) {
+    try {
+      Subscription subscription = getDispatcher(context).subscribe(channel.asJavaString());
+      RubyClass klass = (RubyClass) context.runtime.getClassFromPath("PG::NotificationHub::Subscription");
+      return new HubSubscription(context.runtime, klass, subscription);
+    } catch(IllegalStateException ex) {
+      throw newConnectionBad(context, ex.getLocalizedMessage());
+    }
+  }
+
+  @JRubyMethod
+  public IRubyObject close(ThreadContext context) {
+    if(dispatcher != null) {
+      dispatcher.close();
+    }
+    return context.nil;
+  }
+
+  @JRubyMethod
+  public IRubyObject error_message(ThreadContext context) {
+    String error = dispatcher == null ? null : dispatcher.getErrorMessage();
+    return error == null ? context.nil : context.runtime.newString(error);
+  }
+
+  private NotificationDispatcher getDispatcher(ThreadContext context) {
+    if(dispatcher == null) {
+      throw newConnectionBad(context, "notification hub not initialized");
+    }
+    return dispatcher;
+  }
+
+  private static org.jruby.exceptions.RaiseException newConnectionBad(ThreadContext context, String message) {
+    RubyClass klass = (RubyClass) context.runtime.getClassFromPath("PG::ConnectionBad");
+    return new org.jruby.exceptions.RaiseException(context.runtime, klass, message, true);
+  }
+
+  /**
+   * PG::NotificationHub::Subscription, a single channel subscription
+   */
+  public static class HubSubscription extends RubyObject {
+    private final Subscription subscription;
+
+    HubSubscription(Ruby ruby, RubyClass rubyClass, Subscription subscription) {
+      super(ruby, rubyClass);
+      this.subscription = subscription;
+    }
+
+    @JRubyMethod
+    public IRubyObject channel(ThreadContext context) {
+      return context.runtime.newString(subscription.getChannel());
+    }
+
+    /**
+     * Return the next notification as a hash (same as
+     * PG::Connection#notifies) or nil if there are none pending
+     */
+    @JRubyMethod
+    public IRubyObject notifies(ThreadContext context) {
+      return toHash(context, subscription.poll());
+    }
+
+    /**
+     * Wait for the next notification for up to timeout seconds (or
+     * forever if timeout is nil), return nil if the timeout elapses.
+     * Raise PG::ConnectionBad if the hub stopped because of an error,
+     * e.g. a listener connection was closed by the server
+     */
+    @JRubyMethod(optional = 1)
+    public IRubyObject wait_for_notify(ThreadContext context, IRubyObject[] args) {
+      long timeout = 0;
+      if(args.length >= 1 && !args[0].isNil()) {
+        timeout = (long)(((RubyNumeric) args[0]).getDoubleValue() * 1000);
+        if(timeout <= 0) {
+          return notifies(context);
+        }
+      }
+
+      long deadline = System.currentTimeMillis() + timeout;
+      try {
+        for(;;) {
+          long slice = WAIT_SLICE_MILLIS;
+          if(timeout > 0) {
+            slice = Math.min(slice, deadline - System.currentTimeMillis());
+            if(slice <= 0) {
+              return context.nil;
+            }
+          }
+          NotificationResponse notification = subscription.poll(slice);
+          if(notification == null && subscription.getErrorMessage() != null) {
+            throw newConnectionBad(context, subscription.getErrorMessage());
+          }
+          if(notification != null || subscription.isClosed()) {
+            return toHash(context, notification);
+          }
+          context.pollThreadEvents();
+        }
+      } catch(InterruptedException ex) {
+        context.pollThreadEvents();
+        return context.nil;
+      }
+    }
+
+    @JRubyMethod
+    public IRubyObject dropped(ThreadContext context) {
+      return context.runtime.newFixnum(subscription.getDropped());
+    }
+
+    @JRubyMethod(name = "closed?")
+    public IRubyObject closed_p(ThreadContext context) {
+      return context.runtime.newBoolean(subscription.isClosed());
+    }
+
+    @JRubyMethod(alias = {"unsubscribe"})
+    public IRubyObject close(ThreadContext context) {
+      subscription.close();
+      return context.nil;
+    }
+
+    private IRubyObject toHash(ThreadContext context, NotificationResponse notification) {
+      if(notification == null) {
+        return context.nil;
+      }
+      return Connection.notificationToHash(context, notification);
+    }
+  }
+}
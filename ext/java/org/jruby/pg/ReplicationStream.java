@@ -0,0 +1,430 @@
+package org.jruby.pg;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jcodings.Encoding;
+import org.jcodings.specific.ASCIIEncoding;
+
+import org.jruby.*;
+import org.jruby.anno.JRubyMethod;
+import org.jruby.exceptions.RaiseException;
+import org.jruby.pg.internal.PgOutputDecoder;
+import org.jruby.pg.internal.PgOutputDecoder.Change;
+import org.jruby.pg.internal.PgOutputDecoder.ChangeType;
+import org.jruby.pg.internal.PgOutputDecoder.Relation;
+import org.jruby.pg.internal.PgOutputDecoder.Transaction;
+import org.jruby.pg.internal.PgOutputDecoder.Tuple;
+import org.jruby.pg.internal.PrimitiveColumn;
+import org.jruby.pg.internal.WalReceiver;
+import org.jruby.pg.messages.StandbyStatusUpdate;
+import org.jruby.pg.messages.XLogData;
+import org.jruby.runtime.Block;
+import org.jruby.runtime.ObjectAllocator;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.util.ByteList;
+
+/**
+ * PG::ReplicationStream, the data streamed by a replication connection
+ * after START_REPLICATION, see {@link WalReceiver}
+ */
+@SuppressWarnings("serial")
+public class ReplicationStream extends RubyObject {
+  // how long a waiting ruby thread is blocked before checking for
+  // thread events (e.g. Thread#raise or Thread#kill)
+  private static final long WAIT_SLICE_MILLIS = 100;
+
+  private final Connection connection;
+  private final WalReceiver receiver;
+  private final Encoding encoding;
+  private final int maxChanges;
+  // created by the first call to read_transaction
+  private PgOutputDecoder decoder;
+  // the frozen namespace, name and column names of each relation by
+  // oid, replaced when the server sends a new version of the relation
+  private final Map<Integer, RelationNames> relationNames = new HashMap<Integer, RelationNames>();
+
+  ReplicationStream(Ruby ruby, RubyClass rubyClass, Connection connection, WalReceiver receiver,
+                    Encoding encoding, int maxChanges) {
+    super(ruby, rubyClass);
+    this.connection = connection;
+    this.receiver = receiver;
+    this.encoding = encoding;
+    this.maxChanges = maxChanges;
+  }
+
+  public static void define(Ruby ruby, RubyModule pg) {
+    RubyClass stream = pg.defineClassUnder("ReplicationStream", ruby.getObject(),
+                                           ObjectAllocator.NOT_ALLOCATABLE_ALLOCATOR);
+    stream.includeModule(ruby.getEnumerable());
+    stream.defineAnnotatedMethods(ReplicationStream.class);
+  }
+
+  /**
+   * call-seq:
+   *   stream.read(timeout = nil) -> [data, wal_start, wal_end] or nil
+   *
+   * Wait for up to timeout seconds (or forever if timeout is nil) for
+   * the next message, return nil if the timeout elapses or the server
+   * ended the stream
+   */
+  @JRubyMethod(optional = 1)
+  public IRubyObject read(ThreadContext context, IRubyObject[] args) {
+    XLogData data = readMessage(context, getTimeout(args), System.currentTimeMillis());
+    return data == null ? context.nil : toArray(context, data);
+  }
+
+  /**
+   * call-seq:
+   *   stream.read_transaction(timeout = nil) -> Hash or nil
+   *
+   * Decode the pgoutput messages until the end of the next transaction,
+   * or until the next batch of a large transaction is full, and return
+   * it, see each_transaction. Return nil if the timeout elapses, the
+   * messages received until then are kept
+   */
+  @JRubyMethod(optional = 1)
+  public IRubyObject read_transaction(ThreadContext context, IRubyObject[] args) {
+    long timeout = getTimeout(args);
+    long start = System.currentTimeMillis();
+    if(decoder == null) {
+      decoder = new PgOutputDecoder(maxChanges);
+    }
+    for(;;) {
+      XLogData data = readMessage(context, timeout, start);
+      if(data == null) {
+        return context.nil;
+      }
+      try {
+        Transaction transaction = decoder.decode(data);
+        if(transaction != null) {
+          return toHash(context, transaction);
+        }
+      } catch(IllegalArgumentException ex) {
+        throw newPgError(context, ex);
+      }
+    }
+  }
+
+  /**
+   * call-seq:
+   *   stream.each_transaction { |transaction| ... }
+   *
+   * Decode the output of the pgoutput plugin (proto_version '1') and
+   * yield each transaction as a Hash with the keys :xid, :commit_lsn,
+   * :end_lsn, :commit_time, :partial and :changes. A transaction with
+   * more changes than the :max_changes option of replication_stream is
+   * yielded in several batches, :partial is true and the LSNs and the
+   * commit time are nil in all of them but the last. Each change is a Hash with
+   * the keys :type (:insert, :update, :delete or :truncate), :schema,
+   * :table, :old and :new. The rows are Hashes of column name to
+   * value, integer, float and boolean columns are converted like
+   * Result#column_as_java does and the other values are strings. The
+   * unchanged TOASTed values aren't sent by the server and are left
+   * out. A truncate has the keys :relations (an Array of [schema,
+   * table]), :cascade and :restart_identity instead
+   */
+  @JRubyMethod
+  public IRubyObject each_transaction(ThreadContext context, Block block) {
+    if(!block.isGiven()) {
+      return RubyEnumerator.enumeratorize(context.runtime, this, "each_transaction");
+    }
+    IRubyObject[] noArgs = new IRubyObject[0];
+    for(;;) {
+      IRubyObject transaction = read_transaction(context, noArgs);
+      if(transaction.isNil()) {
+        return this;
+      }
+      block.yield(context, transaction);
+    }
+  }
+
+  /**
+   * Return the next message, null if the timeout elapsed or the server
+   * ended the stream
+   */
+  private XLogData readMessage(ThreadContext context, long timeout, long start) {
+    long deadline = start + timeout;
+    try {
+      for(;;) {
+        long slice = WAIT_SLICE_MILLIS;
+        if(timeout > 0) {
+          slice = Math.min(slice, deadline - System.currentTimeMillis());
+          if(slice <= 0) {
+            return null;
+          }
+        }
+        XLogData data = receiver.read(slice);
+        if(data != null || receiver.isDone()) {
+          return data;
+        }
+        context.pollThreadEvents();
+      }
+    } catch(IOException ex) {
+      throw newPgError(context, ex);
+    } catch(IllegalArgumentException ex) {
+      throw newPgError(context, ex);
+    }
+  }
+
+  private static long getTimeout(IRubyObject[] args) {
+    if(args.length >= 1 && !args[0].isNil()) {
+      return Math.max(1, (long)(((RubyNumeric) args[0]).getDoubleValue() * 1000));
+    }
+    return 0;
+  }
+
+  /**
+   * call-seq:
+   *   stream.each { |data, wal_start, wal_end| ... }
+   *
+   * Yield the messages until the server ends the stream
+   */
+  @JRubyMethod
+  public IRubyObject each(ThreadContext context, Block block) {
+    if(!block.isGiven()) {
+      return RubyEnumerator.enumeratorize(context.runtime, this, "each");
+    }
+    IRubyObject[] noArgs = new IRubyObject[0];
+    for(;;) {
+      IRubyObject message = read(context, noArgs);
+      if(message.isNil()) {
+        return this;
+      }
+      block.yield(context, message);
+    }
+  }
+
+  /**
+   * call-seq:
+   *   stream.acknowledge(lsn)
+   *
+   * Report the data up to lsn as flushed and applied in the next
+   * status update
+   */
+  @JRubyMethod(required = 1)
+  public IRubyObject acknowledge(ThreadContext context, IRubyObject lsn) {
+    receiver.acknowledge(toLsn(context, lsn));
+    return context.nil;
+  }
+
+  /**
+   * Send a status update right away
+   */
+  @JRubyMethod
+  public IRubyObject send_status(ThreadContext context) {
+    try {
+      receiver.sendStatus(false);
+    } catch(IOException ex) {
+      throw newPgError(context, ex);
+    }
+    return context.nil;
+  }
+
+  @JRubyMethod
+  public IRubyObject received_lsn(ThreadContext context) {
+    return context.runtime.newFixnum(receiver.getReceivedLsn());
+  }
+
+  @JRubyMethod
+  public IRubyObject flushed_lsn(ThreadContext context) {
+    return context.runtime.newFixnum(receiver.getFlushedLsn());
+  }
+
+  @JRubyMethod(name = "done?")
+  public IRubyObject done_p(ThreadContext context) {
+    return context.runtime.newBoolean(receiver.isDone());
+  }
+
+  /**
+   * End the stream, the connection can be used once the remaining
+   * results are retrieved with get_last_result
+   */
+  @JRubyMethod
+  public IRubyObject close(ThreadContext context) {
+    try {
+      receiver.close();
+    } catch(IOException ex) {
+      throw newPgError(context, ex);
+    }
+    return context.nil;
+  }
+
+  /**
+   * call-seq:
+   *   PG::ReplicationStream.format_lsn(lsn) -> String
+   *
+   * Format the lsn the way the server does, e.g. "16/B374D848"
+   */
+  @JRubyMethod(meta = true, required = 1)
+  public static IRubyObject format_lsn(ThreadContext context, IRubyObject self, IRubyObject lsn) {
+    long value = toLsn(context, lsn);
+    return context.runtime.newString(Long.toHexString(value >>> 32).toUpperCase() + "/" +
+                                     Long.toHexString(value & 0xffffffffL).toUpperCase());
+  }
+
+  /**
+   * call-seq:
+   *   PG::ReplicationStream.parse_lsn(string) -> Integer
+   */
+  @JRubyMethod(meta = true, required = 1)
+  public static IRubyObject parse_lsn(ThreadContext context, IRubyObject self, IRubyObject lsn) {
+    String value = lsn.asJavaString();
+    int slash = value.indexOf('/');
+    try {
+      if(slash < 0) {
+        throw new NumberFormatException();
+      }
+      long high = Long.parseLong(value.substring(0, slash), 16);
+      long low = Long.parseLong(value.substring(slash + 1), 16);
+      if(high > 0xffffffffL || low > 0xffffffffL) {
+        throw new NumberFormatException();
+      }
+      return context.runtime.newFixnum(high << 32 | low);
+    } catch(NumberFormatException ex) {
+      throw context.runtime.newArgumentError("invalid lsn " + value);
+    }
+  }
+
+  private static long toLsn(ThreadContext context, IRubyObject lsn) {
+    if(lsn instanceof RubyString) {
+      return parse_lsn(context, null, lsn).convertToInteger().getLongValue();
+    }
+    return lsn.convertToInteger().getLongValue();
+  }
+
+  private static IRubyObject toArray(ThreadContext context, XLogData data) {
+    Ruby runtime = context.runtime;
+    RubyString value = runtime.newString(new ByteList(data.getBuffer(), data.getDataOffset(),
+                                         data.getDataLength(), false));
+    return runtime.newArrayNoCopy(new IRubyObject[] {
+      value, runtime.newFixnum(data.getWalStart()), runtime.newFixnum(data.getWalEnd())
+    });
+  }
+
+  private IRubyObject toHash(ThreadContext context, Transaction transaction) {
+    Ruby runtime = context.runtime;
+    RubyHash hash = RubyHash.newHash(runtime);
+    hash.fastASet(runtime.newSymbol("xid"), runtime.newFixnum(transaction.getXid()));
+    if(transaction.isPartial()) {
+      hash.fastASet(runtime.newSymbol("commit_lsn"), runtime.getNil());
+      hash.fastASet(runtime.newSymbol("end_lsn"), runtime.getNil());
+      hash.fastASet(runtime.newSymbol("commit_time"), runtime.getNil());
+    } else {
+      hash.fastASet(runtime.newSymbol("commit_lsn"), runtime.newFixnum(transaction.getCommitLsn()));
+      hash.fastASet(runtime.newSymbol("end_lsn"), runtime.newFixnum(transaction.getEndLsn()));
+      long commitTime = (transaction.getCommitTime() + StandbyStatusUpdate.POSTGRES_EPOCH_MICROS) / 1000;
+      hash.fastASet(runtime.newSymbol("commit_time"), RubyTime.newTime(runtime, commitTime));
+    }
+    hash.fastASet(runtime.newSymbol("partial"), runtime.newBoolean(transaction.isPartial()));
+
+    List<Change> changes = transaction.getChanges();
+    IRubyObject[] rubyChanges = new IRubyObject[changes.size()];
+    RubySymbol typeKey = runtime.newSymbol("type");
+    RubySymbol schemaKey = runtime.newSymbol("schema");
+    RubySymbol tableKey = runtime.newSymbol("table");
+    RubySymbol oldKey = runtime.newSymbol("old");
+    RubySymbol newKey = runtime.newSymbol("new");
+    for(int i = 0; i < rubyChanges.length; i++) {
+      Change change = changes.get(i);
+      RubyHash rubyChange = RubyHash.newHash(runtime);
+      rubyChange.fastASet(typeKey, runtime.newSymbol(change.getType().name().toLowerCase()));
+      if(change.getType() == ChangeType.Truncate) {
+        Relation[] truncated = change.getTruncated();
+        IRubyObject[] relations = new IRubyObject[truncated.length];
+        for(int j = 0; j < truncated.length; j++) {
+          IRubyObject[] names = getNames(runtime, truncated[j]);
+          relations[j] = runtime.newArray(names[0], names[1]);
+        }
+        rubyChange.fastASet(runtime.newSymbol("relations"), runtime.newArrayNoCopy(relations));
+        rubyChange.fastASet(runtime.newSymbol("cascade"), runtime.newBoolean(change.isCascade()));
+        rubyChange.fastASet(runtime.newSymbol("restart_identity"), runtime.newBoolean(change.isRestartIdentity()));
+      } else {
+        IRubyObject[] names = getNames(runtime, change.getRelation());
+        rubyChange.fastASet(schemaKey, names[0]);
+        rubyChange.fastASet(tableKey, names[1]);
+        rubyChange.fastASet(oldKey, toHash(runtime, change.getRelation(), names, change.getOldTuple()));
+        rubyChange.fastASet(newKey, toHash(runtime, change.getRelation(), names, change.getNewTuple()));
+      }
+      rubyChanges[i] = rubyChange;
+    }
+    hash.fastASet(runtime.newSymbol("changes"), runtime.newArrayNoCopy(rubyChanges));
+    return hash;
+  }
+
+  private IRubyObject toHash(Ruby runtime, Relation relation, IRubyObject[] names, Tuple tuple) {
+    if(tuple == null) {
+      return runtime.getNil();
+    }
+    PgOutputDecoder.Column[] columns = relation.getColumns();
+    RubyHash row = RubyHash.newHash(runtime);
+    for(int i = 0; i < columns.length; i++) {
+      if(tuple.isUnchanged(i)) {
+        continue;
+      }
+      IRubyObject value;
+      if(tuple.isNull(i)) {
+        value = runtime.getNil();
+      } else {
+        Object decoded = PrimitiveColumn.decodeValue(columns[i].getTypeOid(), tuple.getData(), tuple.getOffset(i),
+                         tuple.getLength(i), tuple.isBinary(i));
+        if(decoded instanceof Long) {
+          value = runtime.newFixnum((Long) decoded);
+        } else if(decoded instanceof Double) {
+          value = runtime.newFloat((Double) decoded);
+        } else if(decoded instanceof Boolean) {
+          value = runtime.newBoolean((Boolean) decoded);
+        } else {
+          RubyString string = RubyString.newStringShared(runtime, tuple.getData(), tuple.getOffset(i),
+                              tuple.getLength(i), tuple.isBinary(i) ? ASCIIEncoding.INSTANCE : encoding);
+          string.setFrozen(true);
+          value = string;
+        }
+      }
+      row.fastASet(names[i + 2], value);
+    }
+    return row;
+  }
+
+  /**
+   * Return the namespace, the name and the column names of the relation
+   */
+  private IRubyObject[] getNames(Ruby runtime, Relation relation) {
+    RelationNames cached = relationNames.get(relation.getOid());
+    if(cached == null || cached.relation != relation) {
+      PgOutputDecoder.Column[] columns = relation.getColumns();
+      IRubyObject[] names = new IRubyObject[columns.length + 2];
+      names[0] = frozenString(runtime, relation.getNamespace());
+      names[1] = frozenString(runtime, relation.getName());
+      for(int i = 0; i < columns.length; i++) {
+        names[i + 2] = frozenString(runtime, columns[i].getName());
+      }
+      cached = new RelationNames(relation, names);
+      relationNames.put(relation.getOid(), cached);
+    }
+    return cached.names;
+  }
+
+  private static IRubyObject frozenString(Ruby runtime, String value) {
+    RubyString string = runtime.newString(value);
+    string.setFrozen(true);
+    return string;
+  }
+
+  private RaiseException newPgError(ThreadContext context, Exception ex) {
+    return connection.newPgError(context, ex, null);
+  }
+
+  private static class RelationNames {
+    private final Relation relation;
+    private final IRubyObject[] names;
+
+    RelationNames(Relation relation, IRubyObject[] names) {
+      this.relation = relation;
+      this.names = names;
+    }
+  }
+}
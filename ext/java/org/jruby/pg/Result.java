@@ -1,11 +1,18 @@
 package org.jruby.pg;
 
+import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import org.jcodings.Encoding;
+import org.jcodings.specific.ASCIIEncoding;
 import org.jruby.*;
 import org.jruby.anno.JRubyMethod;
+import org.jruby.javasupport.JavaUtil;
+import org.jruby.pg.internal.PrimitiveColumn;
 import org.jruby.pg.internal.ResultSet;
+import org.jruby.pg.internal.ValueDictionary;
 import org.jruby.pg.messages.Column;
 import org.jruby.pg.messages.DataRow;
 import org.jruby.pg.messages.Format;
@@ -14,14 +21,25 @@ import org.jruby.runtime.Block;
 import org.jruby.runtime.ObjectAllocator;
 import org.jruby.runtime.ThreadContext;
 import org.jruby.runtime.builtin.IRubyObject;
-import org.jruby.util.ByteList;
 
 @SuppressWarnings("serial")
 public class Result extends RubyObject {
 
+  // the rows of a task building the values of a result in parallel
+  private static final int DECODE_CHUNK_SIZE = 4096;
+  private static ForkJoinPool decodePool;
+
   private ResultSet res;
   private Connection conn;
   private final Encoding encoding;
+  // the strings returned for each cell, created the first time the
+  // cell is accessed and shared by all the accessors. Not used for
+  // spilled results since their rows are read back from the disk
+  private IRubyObject[][] cells;
+  private IRubyObject[] fieldNames;
+  // the strings of the values of the dictionary encoded columns, by
+  // column and code
+  private IRubyObject[][] dictionaryValues;
 
   public Result(Ruby ruby, RubyClass rubyClass, Connection connection, ResultSet resultSet, Encoding encoding) {
     super(ruby, rubyClass);
@@ -65,10 +83,29 @@ public class Result extends RubyObject {
     return field == null ? context.nil : context.runtime.newString(field);
   }
 
+  /**
+   * Return true if the rows are kept in a temporary file, see the
+   * spill_threshold connection option
+   */
+  @JRubyMethod(name = "spilled?")
+  public IRubyObject spilled_p(ThreadContext context) {
+    return context.runtime.newBoolean(res != null && res.isSpilled());
+  }
+
   @JRubyMethod
   public IRubyObject clear(ThreadContext context) {
+    if(res != null) {
+      try {
+        // deletes the temporary file of spilled results
+        res.clear();
+      } catch(IOException ex) {
+        throw conn.newPgError(context, ex.getLocalizedMessage(), null);
+      }
+    }
     this.res = null;
     this.conn = null;
+    this.cells = null;
+    this.dictionaryValues = null;
     return context.nil;
   }
 
@@ -208,11 +245,10 @@ public class Result extends RubyObject {
       throw context.runtime.newIndexError("row " + row + " is out of range");
     }
     DataRow dataRow = rows.get(row);
-    byte[][] columns = dataRow.getValues();
-    if(column >= columns.length) {
+    if(column >= dataRow.getColumnCount()) {
       throw context.runtime.newIndexError("column " + column + " is out of range");
     }
-    return valueAsString(context, row, column);
+    return valueAsString(context.runtime, row, column);
   }
 
   @JRubyMethod
@@ -250,7 +286,7 @@ public class Result extends RubyObject {
 
   @JRubyMethod(name = {"cmd_tuples", "cmdtuples"})
   public IRubyObject cmd_tuples(ThreadContext context) {
-    int rows = res.getCmdStatus().getRows();
+    long rows = res.getCmdStatus().getRows();
     return context.runtime.newFixnum(rows);
   }
 
@@ -264,6 +300,11 @@ public class Result extends RubyObject {
   @JRubyMethod
   public IRubyObject values(ThreadContext context) {
     int len = res.getRows().size();
+    int threshold = res.getParallelDecodeThreshold();
+    if(threshold > 0 && len >= threshold && !res.isSpilled()) {
+      return parallelValues(context.runtime, len);
+    }
+
     RubyArray array = context.runtime.newArray();
     for(int i = 0; i < len; i++) {
       array.append(rowToArray(context, i));
@@ -271,6 +312,71 @@ public class Result extends RubyObject {
     return array;
   }
 
+  /**
+   * Build the rows of the result on the decode pool, each task
+   * builds the arrays of a range of rows and the ranges are assembled
+   * in order
+   */
+  private IRubyObject parallelValues(Ruby runtime, int len) {
+    // allocate the shared caches upfront, the tasks only fill
+    // their own rows
+    if(cells == null) {
+      cells = new IRubyObject[len][];
+    }
+    for(int column = 0; column < res.getDescription().getColumns().length; column++) {
+      ValueDictionary dictionary = res.getDictionary(column);
+      if(dictionary != null) {
+        for(int code = 0; code < dictionary.size(); code++) {
+          dictionaryValue(runtime, column, dictionary, code);
+        }
+      }
+    }
+
+    IRubyObject[] rows = new IRubyObject[len];
+    getDecodePool().invoke(new DecodeRows(runtime, rows, 0, len));
+    return RubyArray.newArrayNoCopy(runtime, rows);
+  }
+
+  private static synchronized ForkJoinPool getDecodePool() {
+    if(decodePool == null) {
+      decodePool = new ForkJoinPool();
+    }
+    return decodePool;
+  }
+
+  @SuppressWarnings("serial")
+  private class DecodeRows extends RecursiveAction {
+    private final Ruby runtime;
+    private final IRubyObject[] rows;
+    private final int from, to;
+
+    DecodeRows(Ruby runtime, IRubyObject[] rows, int from, int to) {
+      this.runtime = runtime;
+      this.rows = rows;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if(to - from > DECODE_CHUNK_SIZE) {
+        int middle = (from + to) >>> 1;
+        invokeAll(new DecodeRows(runtime, rows, from, middle),
+                  new DecodeRows(runtime, rows, middle, to));
+        return;
+      }
+
+      List<DataRow> dataRows = res.getRows();
+      for(int i = from; i < to; i++) {
+        IRubyObject[] values = new IRubyObject[dataRows.get(i).getColumnCount()];
+        for(int j = 0; j < values.length; j++) {
+          values[j] = valueAsString(runtime, i, j);
+        }
+        rows[i] = RubyArray.newArrayNoCopy(runtime, values);
+      }
+    }
+  }
+
   @JRubyMethod(name = "[]", required = 1)
   public IRubyObject op_aref(ThreadContext context, IRubyObject row) {
     int index = (int)((RubyFixnum) row).getLongValue();
@@ -316,12 +422,12 @@ public class Result extends RubyObject {
     int column = (int)((RubyFixnum) index).getLongValue();
 
     List<DataRow> rows = res.getRows();
-    if(rows.size() > 0 && column >= rows.get(0).getValues().length) {
+    if(rows.size() > 0 && column >= rows.get(0).getColumnCount()) {
       throw context.runtime.newIndexError("column " + column + " is out of range");
     }
     RubyArray array = context.runtime.newArray();
     for(int i = 0; i < rows.size(); i++) {
-      array.append(valueAsString(context, i, column));
+      array.append(valueAsString(context.runtime, i, column));
     }
     return array;
   }
@@ -338,7 +444,7 @@ public class Result extends RubyObject {
       if(columns[j].getName().equals(fieldName)) {
         RubyArray array = context.runtime.newArray();
         for(int i = 0; i < res.getRows().size(); i++) {
-          array.append(valueAsString(context, i, j));
+          array.append(valueAsString(context.runtime, i, j));
         }
         return array;
       }
@@ -346,6 +452,34 @@ public class Result extends RubyObject {
     throw context.runtime.newIndexError("Unknown column " + fieldName);
   }
 
+  /**
+   * Return the values of an integer, floating point or boolean column
+   * as a Java long[], double[] or boolean[] and a java.util.BitSet of
+   * the rows whose value is NULL. The values are decoded from the row
+   * bytes without creating Ruby objects
+   */
+  @JRubyMethod(required = 1, argTypes = {RubyFixnum.class})
+  public IRubyObject column_as_java(ThreadContext context, IRubyObject index) {
+    if(!(index instanceof RubyFixnum)) {
+      throw context.runtime.newTypeError("argument should be a Fixnum");
+    }
+
+    int column = (int)((RubyFixnum) index).getLongValue();
+    RowDescription description = res.getDescription();
+    if(description == null || column < 0 || column >= description.getColumns().length) {
+      throw context.runtime.newIndexError("column " + column + " is out of range");
+    }
+
+    PrimitiveColumn values;
+    try {
+      values = PrimitiveColumn.decode(res, column);
+    } catch(IllegalArgumentException ex) {
+      throw context.runtime.newArgumentError(ex.getMessage());
+    }
+    return context.runtime.newArray(JavaUtil.convertJavaToUsableRubyObject(context.runtime, values.getValues()),
+                                    JavaUtil.convertJavaToUsableRubyObject(context.runtime, values.getNulls()));
+  }
+
   private RubyArray rowToArray(ThreadContext context, int rowIndex) {
     List<DataRow> rows = res.getRows();
     if(rowIndex >= rows.size()) {
@@ -354,8 +488,8 @@ public class Result extends RubyObject {
 
     RubyArray array = context.runtime.newArray();
 
-    for(int i = 0; i < rows.get(rowIndex).getValues().length; i++) {
-      IRubyObject value = valueAsString(context, rowIndex, i);
+    for(int i = 0; i < rows.get(rowIndex).getColumnCount(); i++) {
+      IRubyObject value = valueAsString(context.runtime, rowIndex, i);
       array.append(value);
     }
     return array;
@@ -363,34 +497,104 @@ public class Result extends RubyObject {
 
   private RubyHash rowToHash(ThreadContext context, int rowIndex) {
     List<DataRow> rows = res.getRows();
-    Column[] columns = res.getDescription().getColumns();
     if(rowIndex < 0 || rowIndex >= rows.size()) {
       throw context.runtime.newIndexError("row " + rowIndex + " is out of range");
     }
 
     RubyHash hash = new RubyHash(context.runtime);
 
-    for(int i = 0; i < rows.get(rowIndex).getValues().length; i++) {
-      IRubyObject name = context.runtime.newString(columns[i].getName());
-      IRubyObject value = valueAsString(context, rowIndex, i);
+    for(int i = 0; i < rows.get(rowIndex).getColumnCount(); i++) {
+      IRubyObject name = fieldName(context, i);
+      IRubyObject value = valueAsString(context.runtime, rowIndex, i);
       hash.op_aset(context, name, value);
     }
     return hash;
   }
 
-  private IRubyObject valueAsString(ThreadContext context, int row, int column) {
-    byte[][] values = res.getRows().get(row).getValues();
-    if(values[column] == null) {
-      return context.nil;
+  /**
+   * Return the frozen name of the given field, frozen strings aren't
+   * copied when used as hash keys
+   */
+  private IRubyObject fieldName(ThreadContext context, int column) {
+    if(fieldNames == null) {
+      Column[] columns = res.getDescription().getColumns();
+      IRubyObject[] names = new IRubyObject[columns.length];
+      for(int i = 0; i < columns.length; i++) {
+        RubyString name = context.runtime.newString(columns[i].getName());
+        name.setFrozen(true);
+        names[i] = name;
+      }
+      fieldNames = names;
     }
+    return fieldNames[column];
+  }
 
-    byte[] bytes = values[column];
+  /**
+   * Return the value of the given cell as a frozen string that shares
+   * the bytes of the row, the string is created once per cell
+   */
+  private IRubyObject valueAsString(Ruby runtime, int row, int column) {
+    ValueDictionary dictionary = res.getDictionary(column);
+    if(dictionary != null) {
+      // the repeated values of the column share the same string, no
+      // need to remember it per cell
+      int code = dictionary.getCode(row);
+      return code < 0 ? runtime.getNil() : dictionaryValue(runtime, column, dictionary, code);
+    }
+
+    List<DataRow> rows = res.getRows();
+    IRubyObject[] rowCells = null;
+    if(!res.isSpilled()) {
+      if(cells == null) {
+        cells = new IRubyObject[rows.size()][];
+      }
+      rowCells = cells[row];
+      if(rowCells == null) {
+        rowCells = cells[row] = new IRubyObject[rows.get(row).getColumnCount()];
+      } else if(rowCells[column] != null) {
+        return rowCells[column];
+      }
+    }
 
-    if(isBinary(column)) {
-      return context.runtime.newString(new ByteList(bytes));
+    IRubyObject value;
+    DataRow dataRow = rows.get(row);
+    if(dataRow.isNull(column)) {
+      value = runtime.getNil();
     } else {
-      return context.runtime.newString(new ByteList(bytes, encoding, false));
+      Encoding valueEncoding = isBinary(column) ? ASCIIEncoding.INSTANCE : encoding;
+      RubyString string = RubyString.newStringShared(runtime, dataRow.getData(),
+                          dataRow.getOffset(column), dataRow.getValueLength(column),
+                          valueEncoding);
+      string.setFrozen(true);
+      value = string;
+    }
+
+    if(rowCells != null) {
+      rowCells[column] = value;
+    }
+    return value;
+  }
+
+  /**
+   * Return the frozen string of the given dictionary value, it is
+   * created once and shared by all the cells with that value
+   */
+  private IRubyObject dictionaryValue(Ruby runtime, int column, ValueDictionary dictionary, int code) {
+    if(dictionaryValues == null) {
+      dictionaryValues = new IRubyObject[res.getDescription().getColumns().length][];
+    }
+    IRubyObject[] values = dictionaryValues[column];
+    if(values == null) {
+      values = dictionaryValues[column] = new IRubyObject[dictionary.size()];
+    }
+    if(values[code] == null) {
+      RubyString string = RubyString.newStringShared(runtime, dictionary.getData(code),
+                          dictionary.getOffset(code), dictionary.getLength(code),
+                          encoding);
+      string.setFrozen(true);
+      values[code] = string;
     }
+    return values[code];
   }
 
   private boolean isBinary(int column) {
@@ -14,6 +14,6 @@ public enum AsyncStatus {
   CopyIn,
   /** Doing CopyOut */
   CopyOut,
-  /** UNUSED: Doing CopyBoth */
+  /** Doing CopyBoth, i.e. streaming replication */
   CopyBoth,
 }
@@ -0,0 +1,185 @@
+package org.jruby.pg.internal;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * The text representations of bytea, the hex format ("\x" followed by
+ * two hex digits per byte) and the legacy escape format (printable
+ * bytes as themselves, the others as a backslash followed by three
+ * octal digits).
+ *
+ * Both directions are table driven and write into an array of the
+ * exact size, the escaped form of each byte is copied from a table
+ * instead of being formatted.
+ */
+public class Bytea {
+  private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+  private static final byte[] HEX_DIGITS = {
+    '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'
+  };
+
+  // the two hex digits of each byte
+  private static final byte[] HEX = new byte[256 * 2];
+  // the escaped form of each byte in the escape format, when
+  // standard_conforming_strings is on and off
+  private static final byte[][] ESCAPES = new byte[256][];
+  private static final byte[][] NON_CONFORMING_ESCAPES = new byte[256][];
+  // the value of each hex digit, -1 for the other characters
+  private static final byte[] HEX_VALUES = new byte[256];
+
+  static {
+    for(int b = 0; b < 256; b++) {
+      HEX[b * 2] = HEX_DIGITS[b >>> 4];
+      HEX[b * 2 + 1] = HEX_DIGITS[b & 0xf];
+      ESCAPES[b] = escape(b, "\\");
+      NON_CONFORMING_ESCAPES[b] = escape(b, "\\\\");
+      HEX_VALUES[b] = -1;
+    }
+    for(int i = 0; i < HEX_DIGITS.length; i++) {
+      HEX_VALUES[HEX_DIGITS[i]] = (byte) i;
+      HEX_VALUES[Character.toUpperCase(HEX_DIGITS[i])] = (byte) i;
+    }
+  }
+
+  private Bytea() {
+  }
+
+  /**
+   * Return the escaped form of the byte, the given backslash is
+   * written for each backslash of the escaped value
+   */
+  private static byte[] escape(int b, String backslash) {
+    String escaped;
+    if(b < 0x20 || b > 0x7e) {
+      escaped = backslash + (b >>> 6) + ((b >>> 3) & 7) + (b & 7);
+    } else if(b == '\'') {
+      escaped = "''";
+    } else if(b == '\\') {
+      escaped = backslash + backslash;
+    } else {
+      escaped = String.valueOf((char) b);
+    }
+    return escaped.getBytes(US_ASCII);
+  }
+
+  /**
+   * Escape the given bytes to be used in a string literal
+   *
+   * @param conformingStrings false if backslashes must be doubled,
+   *        i.e. standard_conforming_strings is off
+   * @param hex true to use the hex format, only understood by 9.0+
+   */
+  public static byte[] escape(byte[] bytes, int offset, int length, boolean conformingStrings, boolean hex) {
+    return hex ? escapeHex(bytes, offset, length, conformingStrings)
+                 : escapeOctal(bytes, offset, length, conformingStrings);
+  }
+
+  private static byte[] escapeHex(byte[] bytes, int offset, int length, boolean conformingStrings) {
+    int prefix = conformingStrings ? 2 : 3;
+    byte[] out = new byte[prefix + length * 2];
+    int j = 0;
+    if(!conformingStrings) {
+      out[j++] = '\\';
+    }
+    out[j++] = '\\';
+    out[j++] = 'x';
+    for(int i = offset; i < offset + length; i++) {
+      int b = (bytes[i] & 0xff) * 2;
+      out[j++] = HEX[b];
+      out[j++] = HEX[b + 1];
+    }
+    return out;
+  }
+
+  private static byte[] escapeOctal(byte[] bytes, int offset, int length, boolean conformingStrings) {
+    byte[][] escapes = conformingStrings ? ESCAPES : NON_CONFORMING_ESCAPES;
+
+    int size = 0;
+    for(int i = offset; i < offset + length; i++) {
+      size += escapes[bytes[i] & 0xff].length;
+    }
+
+    byte[] out = new byte[size];
+    int j = 0;
+    for(int i = offset; i < offset + length; i++) {
+      byte[] escape = escapes[bytes[i] & 0xff];
+      for(int k = 0; k < escape.length; k++) {
+        out[j++] = escape[k];
+      }
+    }
+    return out;
+  }
+
+  /**
+   * Decode the text representation of a bytea value, either format
+   * is supported. Malformed input is ignored like libpq's
+   * PQunescapeBytea() does
+   */
+  public static byte[] unescape(byte[] bytes, int offset, int length) {
+    if(length >= 2 && bytes[offset] == '\\' && bytes[offset + 1] == 'x') {
+      return unescapeHex(bytes, offset + 2, length - 2);
+    }
+    return unescapeOctal(bytes, offset, length);
+  }
+
+  private static byte[] unescapeHex(byte[] bytes, int offset, int length) {
+    byte[] out = new byte[length / 2];
+    int j = 0;
+    int end = offset + length;
+    int i = offset;
+    while(i < end) {
+      // whitespace between the pairs, and any other invalid digit, is
+      // skipped
+      int high = HEX_VALUES[bytes[i++] & 0xff];
+      if(high < 0 || i == end) {
+        continue;
+      }
+      int low = HEX_VALUES[bytes[i++] & 0xff];
+      if(low >= 0) {
+        out[j++] = (byte) (high << 4 | low);
+      }
+    }
+    return j == out.length ? out : Arrays.copyOf(out, j);
+  }
+
+  private static byte[] unescapeOctal(byte[] bytes, int offset, int length) {
+    // nothing to decode, the common case for text without backslashes
+    int end = offset + length;
+    int i = offset;
+    while(i < end && bytes[i] != '\\') {
+      i++;
+    }
+    if(i == end) {
+      return Arrays.copyOfRange(bytes, offset, end);
+    }
+
+    byte[] out = new byte[length];
+    int j = i - offset;
+    System.arraycopy(bytes, offset, out, 0, j);
+    while(i < end) {
+      byte b = bytes[i];
+      if(b != '\\') {
+        out[j++] = b;
+        i++;
+        continue;
+      }
+      i++;
+      if(i < end && bytes[i] == '\\') {
+        out[j++] = '\\';
+        i++;
+      } else if(i + 2 < end && isOctal(bytes[i], '3') && isOctal(bytes[i + 1], '7') && isOctal(bytes[i + 2], '7')) {
+        out[j++] = (byte) ((bytes[i] - '0') << 6 | (bytes[i + 1] - '0') << 3 | (bytes[i + 2] - '0'));
+        i += 3;
+      }
+      // a backslash followed by anything else is dropped, the next
+      // character is decoded as itself
+    }
+    return j == out.length ? out : Arrays.copyOf(out, j);
+  }
+
+  private static boolean isOctal(byte b, char max) {
+    return b >= '0' && b <= max;
+  }
+}
@@ -2,7 +2,16 @@ package org.jruby.pg.internal;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
+import org.jruby.pg.internal.ResultSet.ResultStatus;
+import org.jruby.pg.messages.DataRow;
 import org.jruby.pg.messages.Format;
 import org.jruby.pg.messages.Value;
 
@@ -36,6 +45,10 @@ import org.jruby.pg.messages.Value;
  *
  * ================================================================
  *
+ * All the functions are called using the fastpath FunctionCall
+ * message. The oids of the functions are looked up the first time a
+ * function is called and cached for the lifetime of the connection.
+ *
  * @author jvshahid
  */
 public class LargeObjectAPI {
@@ -45,16 +58,35 @@ public class LargeObjectAPI {
   public static final int SEEK_CUR = 1;
   public static final int SEEK_END = 2;
 
+  // lo_import and lo_export transfer the data in chunks of this size
+  // and keep up to PIPELINE_DEPTH calls in flight, so the transfer is
+  // bound by the bandwidth rather than the round trip time
+  private static final int CHUNK_SIZE = 64 * 1024;
+  private static final int PIPELINE_DEPTH = 8;
+
+  private static final Charset ASCII = Charset.forName("US-ASCII");
+
+  private static final String FUNCTION_OIDS_QUERY =
+    "select proname, oid from pg_catalog.pg_proc " +
+    "where proname in ('lo_open', 'lo_close', 'lo_creat', 'lo_create', 'lo_unlink', " +
+    "'lo_lseek', 'lo_tell', 'lo_truncate', 'loread', 'lowrite') " +
+    "and pronamespace = (select oid from pg_catalog.pg_namespace where nspname = 'pg_catalog')";
+
+  private final PostgresqlConnection postgresqlConnection;
+
+  // function name to oid, lazily initialized by functionOid()
+  private Map<String, Integer> functionOids;
+
   public LargeObjectAPI(PostgresqlConnection postgresqlConnection) {
     this.postgresqlConnection = postgresqlConnection;
   }
 
   public int loCreate(int oid) throws IOException, PostgresqlException {
-    return createCommon("lo_create", oid);
+    return intFunction("lo_create", intValue(oid));
   }
 
   public int loCreat(int mode) throws IOException, PostgresqlException {
-    return createCommon("lo_creat", mode);
+    return intFunction("lo_creat", intValue(mode));
   }
 
   public int loOpen(int oid) throws IOException, PostgresqlException {
@@ -62,150 +94,196 @@ public class LargeObjectAPI {
   }
 
   public int loOpen(int oid, int mode) throws IOException, PostgresqlException {
-    return twoArgFunction("lo_open", oid, mode);
+    return intFunction("lo_open", intValue(oid), intValue(mode));
   }
 
-  private int createCommon(String functionName, int argValue) throws IOException, PostgresqlException {
-    ByteBuffer buffer = ByteBuffer.allocate(4);
-    buffer.putInt(argValue);
-    Value value = new Value(buffer.array(), Format.Binary);
-    ResultSet result = postgresqlConnection.execQueryParams(createString("select " + functionName + "($1)"), new Value[] { value },
-                       Format.Binary, new int[0]);
-    if(result.getError() != null) {
-      throw new PostgresqlException(result.getError(), result);
-    }
-    return bytesToInt(result.getRows().get(0).getValues()[0]);
-  }
-
-  private final PostgresqlConnection postgresqlConnection;
-
   public int loWrite(int fd, byte[] bytes) throws IOException, PostgresqlException {
-    ByteBuffer buffer = ByteBuffer.allocate(4);
-    buffer.putInt(fd);
-    Value fdValue = new Value(buffer.array(), Format.Binary);
-    Value byteValue = new Value(bytes, Format.Binary);
-    ResultSet result = postgresqlConnection.execQueryParams(createString("select lowrite($1, $2)"),
-                       new Value[] { fdValue, byteValue }, Format.Binary, new int[0]);
-    if(result.getError() != null) {
-      throw new PostgresqlException(result.getError(), result);
-    }
-    return bytesToInt(result.getRows().get(0).getValues()[0]);
+    return intFunction("lowrite", intValue(fd), new Value(bytes, Format.Binary));
   }
 
   public byte[] loRead(int fd, int count) throws PostgresqlException, IOException {
-    ByteBuffer buffer = ByteBuffer.allocate(4);
-    byte[] fdBytes, countBytes;
-    fdBytes = new byte[4];
-    countBytes = new byte[4];
-    buffer.putInt(fd);
-    buffer.flip();
-    buffer.get(fdBytes);
-    buffer.clear();
-    buffer.putInt(count);
-    buffer.flip();
-    buffer.get(countBytes);
-
-    Value fdValue = new Value(fdBytes, Format.Binary);
-    Value countValue = new Value(countBytes, Format.Binary);
-    ResultSet result = postgresqlConnection.execQueryParams(createString("select loread($1, $2)"),
-                       new Value[] { fdValue, countValue }, Format.Binary, new int[0]);
-    if(result.getError() != null) {
-      throw new PostgresqlException(result.getError(), result);
-    }
-    return result.getRows().get(0).getValues()[0];
+    return function("loread", intValue(fd), intValue(count));
   }
 
   public int loSeek(int fd, int offset, int whence) throws IOException, PostgresqlException {
-    ByteBuffer buffer = ByteBuffer.allocate(4);
-    byte[] fdBytes, offsetBytes, whenceBytes;
-    fdBytes = new byte[4];
-    offsetBytes = new byte[4];
-    whenceBytes = new byte[4];
-    buffer.putInt(fd);
-    buffer.flip();
-    buffer.get(fdBytes);
-    buffer.clear();
-    buffer.putInt(offset);
-    buffer.flip();
-    buffer.get(offsetBytes);
-    buffer.clear();
-    buffer.putInt(whence);
-    buffer.flip();
-    buffer.get(whenceBytes);
-
-    Value fdValue = new Value(fdBytes, Format.Binary);
-    Value offsetValue = new Value(offsetBytes, Format.Binary);
-    Value whenceValue = new Value(whenceBytes, Format.Binary);
-    ResultSet result = postgresqlConnection.execQueryParams(createString("select lo_lseek($1, $2, $3)"), new Value[] {
-                         fdValue,
-                         offsetValue, whenceValue
-                       }, Format.Binary, new int[0]);
-    if(result.getError() != null) {
-      throw new PostgresqlException(result.getError(), result);
-    }
-    return bytesToInt(result.getRows().get(0).getValues()[0]);
+    return intFunction("lo_lseek", intValue(fd), intValue(offset), intValue(whence));
   }
 
   public int loTell(int fd) throws IOException, PostgresqlException {
-    return oneArgFunction("lo_tell", fd);
+    return intFunction("lo_tell", intValue(fd));
   }
 
   public int loClose(int fd) throws IOException, PostgresqlException {
-    return oneArgFunction("lo_close", fd);
+    return intFunction("lo_close", intValue(fd));
   }
 
   public int loUnlink(int fd) throws IOException, PostgresqlException {
-    return oneArgFunction("lo_unlink", fd);
+    return intFunction("lo_unlink", intValue(fd));
+  }
+
+  public int loTruncate(int fd, int len) throws PostgresqlException, IOException {
+    return intFunction("lo_truncate", intValue(fd), intValue(len));
   }
 
-  private int oneArgFunction(String name, int fd) throws IOException, PostgresqlException {
-    ByteBuffer buffer = ByteBuffer.allocate(4);
-    byte[] fdBytes;
-    fdBytes = new byte[4];
-    buffer.putInt(fd);
-    buffer.flip();
-    buffer.get(fdBytes);
+  /**
+   * Create a new large object with the content of the given file and
+   * return its oid. The file is read from its current position to
+   * the end.
+   */
+  public int loImport(FileChannel file) throws IOException, PostgresqlException {
+    int oid = loCreat(READ | WRITE);
+    int fd = loOpen(oid, WRITE);
+
+    int lowrite = functionOid("lowrite");
+    Value fdValue = intValue(fd);
+    ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+    ArrayDeque<Integer> inFlight = new ArrayDeque<Integer>();
+
+    boolean eof = false;
+    while(!eof) {
+      chunk.clear();
+      while(chunk.hasRemaining()) {
+        if(file.read(chunk) < 0) {
+          eof = true;
+          break;
+        }
+      }
+      if(chunk.position() == 0) {
+        break;
+      }
+
+      if(inFlight.size() == PIPELINE_DEPTH) {
+        checkWritten(nextPipelinedResult(), inFlight.poll());
+      }
 
-    Value fdValue = new Value(fdBytes, Format.Binary);
-    ResultSet result = postgresqlConnection.execQueryParams(createString("select " + name + "($1)"), new Value[] { fdValue }, Format.Binary, new int[0]);
+      // the message is copied to the output buffer as soon as it's
+      // sent, so the chunk can be reused unless it's partially filled
+      byte[] bytes = chunk.hasRemaining() ? Arrays.copyOf(chunk.array(), chunk.position()) : chunk.array();
+      postgresqlConnection.sendFunctionCall(lowrite, new Value[] {fdValue, new Value(bytes, Format.Binary)},
+                                            Format.Binary);
+      inFlight.add(bytes.length);
+    }
+
+    while(!inFlight.isEmpty()) {
+      checkWritten(nextPipelinedResult(), inFlight.poll());
+    }
+
+    loClose(fd);
+    return oid;
+  }
+
+  /**
+   * Write the content of the large object with the given oid to the
+   * given file
+   */
+  public void loExport(int oid, FileChannel file) throws IOException, PostgresqlException {
+    int fd = loOpen(oid, READ);
+
+    int loread = functionOid("loread");
+    Value[] args = new Value[] {intValue(fd), intValue(CHUNK_SIZE)};
+
+    int inFlight = 0;
+    for(; inFlight < PIPELINE_DEPTH; inFlight++) {
+      postgresqlConnection.sendFunctionCall(loread, args, Format.Binary);
+    }
+
+    boolean eof = false;
+    while(inFlight > 0) {
+      byte[] bytes = nextPipelinedResult();
+      inFlight--;
+      if(eof) {
+        // the reads sent after the end of the object return nothing
+        continue;
+      }
+
+      ByteBuffer buffer = ByteBuffer.wrap(bytes);
+      while(buffer.hasRemaining()) {
+        file.write(buffer);
+      }
+
+      if(bytes.length < CHUNK_SIZE) {
+        eof = true;
+      } else {
+        postgresqlConnection.sendFunctionCall(loread, args, Format.Binary);
+        inFlight++;
+      }
+    }
+
+    loClose(fd);
+  }
+
+  /**
+   * Return the result of the next pipelined function call. If the
+   * call failed the results of the remaining calls are discarded
+   * and an exception is thrown.
+   */
+  private byte[] nextPipelinedResult() throws IOException, PostgresqlException {
+    ResultSet result = postgresqlConnection.getResult();
+    if(result == null) {
+      throw new PostgresqlException("missing function call result", null);
+    }
     if(result.getError() != null) {
+      while(postgresqlConnection.getResult() != null) {
+        // discard the results of the remaining calls
+      }
       throw new PostgresqlException(result.getError(), result);
     }
-    return bytesToInt(result.getRows().get(0).getValues()[0]);
+    return result.getFunctionResult();
   }
 
-  public int loTruncate(int fd, int len) throws PostgresqlException, IOException {
-    return twoArgFunction("lo_truncate", fd, len);
-  }
-
-  private int twoArgFunction(String name, int value1, int value2) throws PostgresqlException, IOException {
-    ByteBuffer buffer = ByteBuffer.allocate(4);
-    byte[] value1Bytes, value2Bytes;
-    value1Bytes = new byte[4];
-    value2Bytes = new byte[4];
-    buffer.putInt(value1);
-    buffer.flip();
-    buffer.get(value1Bytes);
-    buffer.clear();
-    buffer.putInt(value2);
-    buffer.flip();
-    buffer.get(value2Bytes);
-
-    Value value1Value = new Value(value1Bytes, Format.Binary);
-    Value value2Value = new Value(value2Bytes, Format.Binary);
-    ResultSet result = postgresqlConnection.execQueryParams(createString("select " + name + "($1, $2)"),
-                       new Value[] { value1Value, value2Value }, Format.Binary, new int[0]);
+  private void checkWritten(byte[] result, int expected) throws IOException, PostgresqlException {
+    int written = bytesToInt(result);
+    if(written != expected) {
+      while(postgresqlConnection.getResult() != null) {
+        // discard the results of the remaining calls
+      }
+      throw new PostgresqlException("short write: wrote " + written + " bytes out of " + expected, null);
+    }
+  }
+
+  private int intFunction(String name, Value... args) throws IOException, PostgresqlException {
+    return bytesToInt(function(name, args));
+  }
+
+  private byte[] function(String name, Value... args) throws IOException, PostgresqlException {
+    ResultSet result = postgresqlConnection.fn(functionOid(name), args, Format.Binary);
     if(result.getError() != null) {
       throw new PostgresqlException(result.getError(), result);
     }
-    return bytesToInt(result.getRows().get(0).getValues()[0]);
+    return result.getFunctionResult();
+  }
+
+  private int functionOid(String name) throws IOException, PostgresqlException {
+    if(functionOids == null) {
+      ResultSet result = postgresqlConnection.exec(new PostgresqlString(FUNCTION_OIDS_QUERY));
+      if(result.getStatus() != ResultStatus.PGRES_TUPLES_OK) {
+        throw new PostgresqlException(result.getError(), result);
+      }
+      Map<String, Integer> oids = new HashMap<String, Integer>();
+      List<DataRow> rows = result.getRows();
+      for(DataRow row : rows) {
+        byte[][] values = row.getValues();
+        oids.put(new String(values[0], ASCII), Integer.valueOf(new String(values[1], ASCII)));
+      }
+      functionOids = oids;
+    }
+
+    Integer oid = functionOids.get(name);
+    if(oid == null) {
+      throw new PostgresqlException("cannot determine oid of function " + name, null);
+    }
+    return oid;
   }
 
-  private PostgresqlString createString(String value) {
-    return new PostgresqlString(value);
+  private static Value intValue(int value) {
+    byte[] bytes = new byte[] {
+      (byte)(value >>> 24), (byte)(value >>> 16), (byte)(value >>> 8), (byte) value
+    };
+    return new Value(bytes, Format.Binary);
   }
 
   private static int bytesToInt(byte[] bytes) {
-    return ByteBuffer.wrap(bytes).getInt();
+    return (bytes[0] & 0xff) << 24 | (bytes[1] & 0xff) << 16 |
+           (bytes[2] & 0xff) << 8 | (bytes[3] & 0xff);
   }
 }
@@ -0,0 +1,118 @@
+package org.jruby.pg.internal;
+
+import java.util.ArrayDeque;
+
+import org.jruby.pg.messages.ErrorResponse;
+
+/**
+ * The notices received by a connection that weren't delivered to the
+ * notice receiver yet. The queue is bounded, the oldest notice is
+ * dropped when it's full, and a token bucket limits the number of
+ * notices accepted per second so a server raising a notice per row
+ * can't flood the receiver.
+ *
+ * The queue is filled while parsing and drained by the thread using
+ * the connection, it isn't thread safe.
+ */
+public class NoticeQueue {
+  private final ArrayDeque<ErrorResponse> queue = new ArrayDeque<ErrorResponse>();
+  private final int capacity;
+
+  // token bucket, 0 notices per second means unlimited
+  private final double rate;
+  private final double burst;
+  private double tokens;
+  private long lastRefill;
+
+  private long received;
+  private long delivered;
+  private long dropped;
+  private long rateLimited;
+
+  /**
+   * @param capacity the maximum number of pending notices
+   * @param rate the number of notices accepted per second, the bucket
+   *        holds up to one second worth of notices. 0 means unlimited
+   */
+  public NoticeQueue(int capacity, double rate) {
+    if(capacity <= 0) {
+      throw new IllegalArgumentException("notice queue size must be positive");
+    }
+    if(rate < 0) {
+      throw new IllegalArgumentException("notice rate limit must not be negative");
+    }
+    this.capacity = capacity;
+    this.rate = rate;
+    this.burst = Math.max(rate, 1);
+    this.tokens = burst;
+    this.lastRefill = System.nanoTime();
+  }
+
+  /**
+   * Queue the notice, return false if it was rejected by the rate
+   * limit
+   */
+  public boolean offer(ErrorResponse notice) {
+    received++;
+    if(rate > 0) {
+      long now = System.nanoTime();
+      tokens = Math.min(burst, tokens + (now - lastRefill) * rate / 1e9);
+      lastRefill = now;
+      if(tokens < 1) {
+        rateLimited++;
+        return false;
+      }
+      tokens--;
+    }
+
+    if(queue.size() == capacity) {
+      queue.poll();
+      dropped++;
+    }
+    queue.add(notice);
+    return true;
+  }
+
+  /**
+   * Return the oldest pending notice, null if there are none
+   */
+  public ErrorResponse poll() {
+    ErrorResponse notice = queue.poll();
+    if(notice != null) {
+      delivered++;
+    }
+    return notice;
+  }
+
+  public boolean isEmpty() {
+    return queue.isEmpty();
+  }
+
+  /**
+   * Return the number of notices received from the server
+   */
+  public long getReceived() {
+    return received;
+  }
+
+  /**
+   * Return the number of notices handed to the receiver
+   */
+  public long getDelivered() {
+    return delivered;
+  }
+
+  /**
+   * Return the number of notices dropped because the queue was full
+   */
+  public long getDropped() {
+    return dropped;
+  }
+
+  /**
+   * Return the number of notices rejected by the rate limit
+   */
+  public long getRateLimited() {
+    return rateLimited;
+  }
+}
@@ -0,0 +1,447 @@
+package org.jruby.pg.internal;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.jruby.pg.internal.ResultSet.ResultStatus;
+import org.jruby.pg.messages.NotificationResponse;
+
+/**
+ * Owns a small number of listener connections and fans out the
+ * notifications they receive to any number of subscribers. All the
+ * listener connections are multiplexed on a single selector that is
+ * serviced by one dispatcher thread, channels are spread over the
+ * connections by hash.
+ *
+ * Every subscriber has its own bounded queue, when the queue is full
+ * the {@link OverflowPolicy} decides whether the new or the oldest
+ * notification is dropped. Duplicate notifications (same channel and
+ * payload) received within the coalesce window are delivered only
+ * once.
+ */
+public class NotificationDispatcher implements Runnable {
+  /**
+   * What to do when a notification is delivered to a full subscriber
+   * queue
+   */
+  public static enum OverflowPolicy {
+    /** drop the notification that was just received */
+    DropNewest,
+    /** drop the oldest notification in the queue to make room */
+    DropOldest;
+  }
+
+  private final PostgresqlConnection[] connections;
+  private final Selector selector;
+  private final Thread thread;
+
+  // subscribers by channel name, modified by the subscribing threads
+  // and read by the dispatcher thread
+  private final Map<String, List<Subscription>> subscribers =
+    new ConcurrentHashMap<String, List<Subscription>>();
+
+  // LISTEN/UNLISTEN commands waiting to be run by the dispatcher
+  // thread, which is the only thread allowed to use the connections
+  private final ConcurrentLinkedQueue<String> pendingCommands =
+    new ConcurrentLinkedQueue<String>();
+
+  // the payloads seen recently on each channel with the time they
+  // were first seen, used to coalesce duplicates. Only accessed by
+  // the dispatcher thread, the inner maps are ordered by time
+  private final Map<String, LinkedHashMap<String, Long>> recentPayloads =
+    new HashMap<String, LinkedHashMap<String, Long>>();
+
+  private final int queueSize;
+  private final OverflowPolicy overflowPolicy;
+  private final long coalesceWindowNanos;
+
+  private volatile boolean closed;
+  private volatile String errorMessage;
+
+  /**
+   * Open <code>numberOfConnections</code> listener connections using
+   * the given properties and start the dispatcher thread
+   *
+   * @param queueSize the capacity of each subscriber queue
+   * @param coalesceWindowMillis duplicate notifications received
+   *        within this window are dropped, 0 disables coalescing
+   */
+  public NotificationDispatcher(Properties props, int numberOfConnections,
+                                int queueSize, OverflowPolicy overflowPolicy,
+                                long coalesceWindowMillis) throws IOException {
+    if(numberOfConnections < 1) {
+      throw new IllegalArgumentException("at least one connection is required");
+    }
+    if(queueSize < 1) {
+      throw new IllegalArgumentException("queue size must be positive");
+    }
+
+    this.queueSize = queueSize;
+    this.overflowPolicy = overflowPolicy;
+    this.coalesceWindowNanos = TimeUnit.MILLISECONDS.toNanos(coalesceWindowMillis);
+
+    connections = new PostgresqlConnection[numberOfConnections];
+    selector = Selector.open();
+    try {
+      for(int i = 0; i < numberOfConnections; i++) {
+        PostgresqlConnection conn = PostgresqlConnection.connectDb(props);
+        connections[i] = conn;
+        if(conn.getStatus() != ConnectionStatus.CONNECTION_OK) {
+          throw new IOException(conn.getErrorMessage());
+        }
+        conn.getSocket().register(selector, SelectionKey.OP_READ, conn);
+      }
+    } catch(IOException ex) {
+      closeConnections();
+      throw ex;
+    }
+
+    thread = new Thread(this, "pg-notification-dispatcher");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Subscribe to the given channel. The channel name is used as is,
+   * i.e. it is case sensitive.
+   */
+  public Subscription subscribe(String channel) {
+    if(closed) {
+      throw new IllegalStateException("dispatcher is closed");
+    }
+
+    Subscription subscription = new Subscription(channel, queueSize, overflowPolicy);
+    synchronized(subscribers) {
+      List<Subscription> list = subscribers.get(channel);
+      if(list == null) {
+        list = new CopyOnWriteArrayList<Subscription>();
+        subscribers.put(channel, list);
+        submitCommand("LISTEN " + PostgresqlConnection.escapeIdentifier(channel));
+      }
+      list.add(subscription);
+    }
+    return subscription;
+  }
+
+  /**
+   * Return the error that stopped the dispatcher thread, null if the
+   * dispatcher is running or was closed normally
+   */
+  public String getErrorMessage() {
+    return errorMessage;
+  }
+
+  /**
+   * Stop the dispatcher thread and close all listener connections
+   */
+  public void close() {
+    if(closed) {
+      return;
+    }
+    closed = true;
+    selector.wakeup();
+    try {
+      thread.join();
+    } catch(InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  public void run() {
+    try {
+      while(!closed) {
+        runPendingCommands();
+
+        selector.select();
+
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while(keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          PostgresqlConnection conn = (PostgresqlConnection) key.attachment();
+          conn.consumeInput();
+          dispatch(conn);
+          if(conn.getStatus() == ConnectionStatus.CONNECTION_BAD) {
+            // the server closed the connection, its socket would keep
+            // selecting as readable
+            throw new IOException(conn.getErrorMessage());
+          }
+        }
+      }
+    } catch(IOException ex) {
+      errorMessage = ex.getLocalizedMessage();
+    } finally {
+      closed = true;
+      closeConnections();
+      // wake up anyone waiting on a subscription
+      for(List<Subscription> list : subscribers.values()) {
+        for(Subscription subscription : list) {
+          subscription.wakeup();
+        }
+      }
+    }
+  }
+
+  private void unsubscribe(Subscription subscription) {
+    synchronized(subscribers) {
+      List<Subscription> list = subscribers.get(subscription.channel);
+      if(list == null || !list.remove(subscription)) {
+        return;
+      }
+      if(list.isEmpty()) {
+        subscribers.remove(subscription.channel);
+        submitCommand("UNLISTEN " + PostgresqlConnection.escapeIdentifier(subscription.channel));
+      }
+    }
+  }
+
+  private void submitCommand(String command) {
+    pendingCommands.add(command);
+    selector.wakeup();
+  }
+
+  private void runPendingCommands() throws IOException {
+    String command;
+    while((command = pendingCommands.poll()) != null) {
+      // LISTEN and UNLISTEN for the same channel must go to the same
+      // connection, the channel is the quoted identifier after the
+      // first space
+      String channel = command.substring(command.indexOf(' ') + 1);
+      PostgresqlConnection conn = connectionFor(channel);
+      ResultSet result = conn.exec(new PostgresqlString(command));
+      if(result.getStatus() != ResultStatus.PGRES_COMMAND_OK) {
+        throw new IOException(result.getError());
+      }
+      // notifications could have arrived while we were waiting for
+      // the command to complete
+      dispatch(conn);
+    }
+  }
+
+  private PostgresqlConnection connectionFor(String channel) {
+    int index = (channel.hashCode() & Integer.MAX_VALUE) % connections.length;
+    return connections[index];
+  }
+
+  private void dispatch(PostgresqlConnection conn) throws IOException {
+    NotificationResponse notification;
+    while((notification = conn.notifies()) != null) {
+      List<Subscription> list = subscribers.get(notification.getCondition());
+      if(list == null || isDuplicate(notification)) {
+        continue;
+      }
+      for(Subscription subscription : list) {
+        subscription.offer(notification);
+      }
+    }
+  }
+
+  /**
+   * Return true if the same payload was seen on the same channel
+   * within the coalesce window
+   */
+  private boolean isDuplicate(NotificationResponse notification) {
+    if(coalesceWindowNanos <= 0) {
+      return false;
+    }
+
+    String channel = notification.getCondition();
+    String payload = notification.getPayload();
+    if(payload == null) {
+      payload = "";
+    }
+
+    LinkedHashMap<String, Long> recent = recentPayloads.get(channel);
+    if(recent == null) {
+      recent = new LinkedHashMap<String, Long>();
+      recentPayloads.put(channel, recent);
+    }
+
+    // expire old entries, the map is ordered by time so we can stop
+    // at the first entry that is still in the window
+    long now = System.nanoTime();
+    Iterator<Long> times = recent.values().iterator();
+    while(times.hasNext() && now - times.next() >= coalesceWindowNanos) {
+      times.remove();
+    }
+
+    if(recent.containsKey(payload)) {
+      return true;
+    }
+    recent.put(payload, now);
+    return false;
+  }
+
+  private void closeConnections() {
+    // closing the selector deregisters the sockets first, a socket
+    // that is still registered cannot be put back in blocking mode by
+    // PostgresqlConnection.close()
+    try {
+      selector.close();
+    } catch(IOException ex) {
+      // ignore
+    }
+    for(PostgresqlConnection conn : connections) {
+      if(conn == null) {
+        continue;
+      }
+      try {
+        conn.close();
+      } catch(IOException ex) {
+        // ignore, we're shutting down
+      } catch(RuntimeException ex) {
+        // ignore, the other connections must be closed too
+      }
+    }
+  }
+
+  /**
+   * A subscription to a single channel. The queue is lock free and
+   * bounded, it is written by the dispatcher thread only and can be
+   * read by any thread, but only one thread should block in {@link
+   * #poll(long)} at any time.
+   */
+  public class Subscription {
+    private final String channel;
+    private final ConcurrentLinkedQueue<NotificationResponse> queue =
+      new ConcurrentLinkedQueue<NotificationResponse>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicLong dropped = new AtomicLong();
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private volatile Thread waiter;
+    private volatile boolean unsubscribed;
+
+    Subscription(String channel, int capacity, OverflowPolicy policy) {
+      this.channel = channel;
+      this.capacity = capacity;
+      this.policy = policy;
+    }
+
+    public String getChannel() {
+      return channel;
+    }
+
+    /**
+     * Return the number of notifications that were dropped because
+     * the queue was full
+     */
+    public long getDropped() {
+      return dropped.get();
+    }
+
+    /**
+     * Return true if no more notifications will be delivered to this
+     * subscription, either because it was closed or because the
+     * dispatcher stopped
+     */
+    public boolean isClosed() {
+      return unsubscribed || closed;
+    }
+
+    /**
+     * Return the error that stopped the dispatcher, null if this
+     * subscription was closed normally or is still open
+     */
+    public String getErrorMessage() {
+      return unsubscribed ? null : errorMessage;
+    }
+
+    /**
+     * Return the next notification or null if the queue is empty
+     */
+    public NotificationResponse poll() {
+      NotificationResponse notification = queue.poll();
+      if(notification != null) {
+        size.decrementAndGet();
+      }
+      return notification;
+    }
+
+    /**
+     * Wait up to timeoutMillis for a notification, 0 means wait
+     * forever. Returns null if the timeout elapses or the
+     * subscription is closed.
+     */
+    public NotificationResponse poll(long timeoutMillis) throws InterruptedException {
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+      for(;;) {
+        NotificationResponse notification = poll();
+        if(notification != null || isClosed()) {
+          return notification;
+        }
+
+        long remaining = deadline - System.nanoTime();
+        if(timeoutMillis > 0 && remaining <= 0) {
+          return null;
+        }
+
+        waiter = Thread.currentThread();
+        try {
+          // check again now that the producer can see us
+          if(queue.isEmpty() && !isClosed()) {
+            if(timeoutMillis > 0) {
+              LockSupport.parkNanos(this, remaining);
+            } else {
+              LockSupport.park(this);
+            }
+          }
+        } finally {
+          waiter = null;
+        }
+
+        if(Thread.interrupted()) {
+          throw new InterruptedException();
+        }
+      }
+    }
+
+    /**
+     * Stop receiving notifications on this subscription. The channel
+     * is unlistened when its last subscription is closed.
+     */
+    public void close() {
+      unsubscribed = true;
+      unsubscribe(this);
+      wakeup();
+    }
+
+    void offer(NotificationResponse notification) {
+      if(size.incrementAndGet() > capacity) {
+        if(policy == OverflowPolicy.DropNewest) {
+          size.decrementAndGet();
+          dropped.incrementAndGet();
+          return;
+        }
+        // make room by dropping the head of the queue
+        if(queue.poll() != null) {
+          size.decrementAndGet();
+        }
+        dropped.incrementAndGet();
+      }
+      queue.offer(notification);
+      wakeup();
+    }
+
+    void wakeup() {
+      Thread thread = waiter;
+      if(thread != null) {
+        LockSupport.unpark(thread);
+      }
+    }
+  }
+}
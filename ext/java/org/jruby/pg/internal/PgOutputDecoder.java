@@ -0,0 +1,473 @@
+package org.jruby.pg.internal;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jruby.pg.messages.XLogData;
+
+/**
+ * Decodes the messages of the pgoutput logical decoding plugin
+ * (protocol version 1) and batches the changes of each transaction.
+ * A transaction with more changes than the limit is returned in
+ * several batches, all of them but the last are partial, so the
+ * changes (and the messages their tuples reference) of a large
+ * transaction aren't all kept in memory until its Commit.
+ *
+ * The relations are cached by oid, the server sends a Relation message
+ * before the first change of a relation in the session and whenever
+ * it changes. The values of the tuples aren't copied, they reference
+ * the XLogData buffer.
+ */
+public class PgOutputDecoder {
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  public static enum ChangeType {
+    Insert, Update, Delete, Truncate
+  }
+
+  /**
+   * The default maximum number of changes of a batch
+   */
+  public static final int DEFAULT_MAX_CHANGES = 10000;
+
+  private final Map<Integer, Relation> relations = new HashMap<Integer, Relation>();
+  private final int maxChanges;
+  private Transaction transaction;
+
+  // the position in the message being decoded
+  private byte[] data;
+  private int position;
+  private int end;
+
+  public PgOutputDecoder() {
+    this(DEFAULT_MAX_CHANGES);
+  }
+
+  /**
+   * @param maxChanges the maximum number of changes of a batch, 0 to
+   *        return each transaction in a single batch
+   */
+  public PgOutputDecoder(int maxChanges) {
+    this.maxChanges = maxChanges;
+  }
+
+  /**
+   * Decode the given message, return the transaction if it's a Commit,
+   * a partial batch of the transaction if the change reached the
+   * maximum number of changes and null otherwise
+   *
+   * @throws IllegalArgumentException if the message is malformed or
+   *         refers to an unknown relation
+   */
+  public Transaction decode(XLogData message) {
+    data = message.getBuffer();
+    position = message.getDataOffset();
+    end = position + message.getDataLength();
+    if(position == end) {
+      return null;
+    }
+
+    byte type = data[position++];
+    switch(type) {
+    case 'B':
+      // the final LSN and the commit time are sent again in Commit
+      position += 16;
+      transaction = new Transaction(getInt() & 0xffffffffL);
+      return null;
+
+    case 'C':
+      position++; // flags, unused
+      Transaction committed = inTransaction();
+      committed.commitLsn = getLong();
+      committed.endLsn = getLong();
+      committed.commitTime = getLong();
+      transaction = null;
+      return committed;
+
+    case 'R':
+      int oid = getInt();
+      String namespace = getString();
+      String name = getString();
+      position++; // replica identity
+      int count = getShort();
+      Column[] columns = new Column[count];
+      for(int i = 0; i < count; i++) {
+        boolean key = (data[position++] & 1) != 0;
+        columns[i] = new Column(getString(), getInt(), getInt(), key);
+      }
+      relations.put(oid, new Relation(oid, namespace, name, columns));
+      return null;
+
+    case 'I': {
+      Relation relation = getRelation(getInt());
+      expect('N');
+      return add(new Change(ChangeType.Insert, relation, null, getTuple(relation)));
+    }
+
+    case 'U': {
+      Relation relation = getRelation(getInt());
+      Tuple oldTuple = null;
+      if(data[position] == 'K' || data[position] == 'O') {
+        position++;
+        oldTuple = getTuple(relation);
+      }
+      expect('N');
+      return add(new Change(ChangeType.Update, relation, oldTuple, getTuple(relation)));
+    }
+
+    case 'D': {
+      Relation relation = getRelation(getInt());
+      if(data[position] != 'K' && data[position] != 'O') {
+        throw new IllegalArgumentException("invalid pgoutput Delete message");
+      }
+      position++;
+      return add(new Change(ChangeType.Delete, relation, getTuple(relation), null));
+    }
+
+    case 'T': {
+      int relationCount = getInt();
+      int options = data[position++];
+      Relation[] truncated = new Relation[relationCount];
+      for(int i = 0; i < relationCount; i++) {
+        truncated[i] = getRelation(getInt());
+      }
+      Change change = new Change(ChangeType.Truncate, null, null, null);
+      change.truncated = truncated;
+      change.cascade = (options & 1) != 0;
+      change.restartIdentity = (options & 2) != 0;
+      return add(change);
+    }
+
+    default:
+      // Origin, Type and logical decoding messages don't change rows
+      return null;
+    }
+  }
+
+  private Relation getRelation(int oid) {
+    Relation relation = relations.get(oid);
+    if(relation == null) {
+      throw new IllegalArgumentException("pgoutput change for unknown relation " + (oid & 0xffffffffL));
+    }
+    return relation;
+  }
+
+  /**
+   * Add the change to the current transaction, return the batch if it
+   * is full. The following changes go to a new batch of the same
+   * transaction
+   */
+  private Transaction add(Change change) {
+    Transaction batch = inTransaction();
+    batch.changes.add(change);
+    if(maxChanges <= 0 || batch.changes.size() < maxChanges) {
+      return null;
+    }
+    batch.partial = true;
+    transaction = new Transaction(batch.xid);
+    return batch;
+  }
+
+  private Transaction inTransaction() {
+    if(transaction == null) {
+      throw new IllegalArgumentException("pgoutput change outside of a transaction");
+    }
+    return transaction;
+  }
+
+  private Tuple getTuple(Relation relation) {
+    int count = getShort();
+    if(count != relation.columns.length) {
+      throw new IllegalArgumentException("pgoutput tuple has " + count + " columns, relation " +
+                                         relation.name + " has " + relation.columns.length);
+    }
+    Tuple tuple = new Tuple(data, count);
+    for(int i = 0; i < count; i++) {
+      if(position >= end) {
+        throw new IllegalArgumentException("truncated pgoutput message");
+      }
+      byte kind = data[position++];
+      tuple.kinds[i] = kind;
+      if(kind == 't' || kind == 'b') {
+        int length = getInt();
+        tuple.offsets[i] = position;
+        tuple.lengths[i] = length;
+        position += length;
+        check();
+      } else if(kind != 'n' && kind != 'u') {
+        throw new IllegalArgumentException("invalid pgoutput tuple value kind '" + (char) kind + "'");
+      }
+    }
+    return tuple;
+  }
+
+  private void expect(char type) {
+    if(position >= end || data[position++] != type) {
+      throw new IllegalArgumentException("invalid pgoutput message, expected '" + type + "'");
+    }
+  }
+
+  private void check() {
+    if(position > end) {
+      throw new IllegalArgumentException("truncated pgoutput message");
+    }
+  }
+
+  private int getShort() {
+    position += 2;
+    check();
+    return (data[position - 2] & 0xff) << 8 | (data[position - 1] & 0xff);
+  }
+
+  private int getInt() {
+    position += 4;
+    check();
+    return (data[position - 4] & 0xff) << 24 | (data[position - 3] & 0xff) << 16 |
+           (data[position - 2] & 0xff) << 8 | (data[position - 1] & 0xff);
+  }
+
+  private long getLong() {
+    long high = getInt() & 0xffffffffL;
+    return high << 32 | (getInt() & 0xffffffffL);
+  }
+
+  private String getString() {
+    int start = position;
+    while(position < end && data[position] != 0) {
+      position++;
+    }
+    if(position == end) {
+      throw new IllegalArgumentException("truncated pgoutput message");
+    }
+    return new String(data, start, position++ - start, UTF8);
+  }
+
+  public static class Relation {
+    private final int oid;
+    private final String namespace;
+    private final String name;
+    private final Column[] columns;
+
+    Relation(int oid, String namespace, String name, Column[] columns) {
+      this.oid = oid;
+      this.namespace = namespace;
+      this.name = name;
+      this.columns = columns;
+    }
+
+    public int getOid() {
+      return oid;
+    }
+
+    public String getNamespace() {
+      return namespace;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public Column[] getColumns() {
+      return columns;
+    }
+  }
+
+  public static class Column {
+    private final String name;
+    private final int typeOid;
+    private final int typmod;
+    private final boolean key;
+
+    Column(String name, int typeOid, int typmod, boolean key) {
+      this.name = name;
+      this.typeOid = typeOid;
+      this.typmod = typmod;
+      this.key = key;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public int getTypeOid() {
+      return typeOid;
+    }
+
+    public int getTypmod() {
+      return typmod;
+    }
+
+    /**
+     * Return true if the column is part of the replica identity
+     */
+    public boolean isKey() {
+      return key;
+    }
+  }
+
+  /**
+   * The values of a row, a slice of the message they were received in
+   */
+  public static class Tuple {
+    private final byte[] data;
+    // 'n' for NULL, 'u' for an unchanged TOASTed value, 't' for text
+    // and 'b' for binary
+    private final byte[] kinds;
+    private final int[] offsets;
+    private final int[] lengths;
+
+    Tuple(byte[] data, int columns) {
+      this.data = data;
+      this.kinds = new byte[columns];
+      this.offsets = new int[columns];
+      this.lengths = new int[columns];
+    }
+
+    public int getColumnCount() {
+      return kinds.length;
+    }
+
+    public boolean isNull(int column) {
+      return kinds[column] == 'n';
+    }
+
+    /**
+     * Return true if the value is TOASTed and didn't change, the server
+     * doesn't send it
+     */
+    public boolean isUnchanged(int column) {
+      return kinds[column] == 'u';
+    }
+
+    public boolean isBinary(int column) {
+      return kinds[column] == 'b';
+    }
+
+    /**
+     * Return the array holding the values, it must not be modified
+     */
+    public byte[] getData() {
+      return data;
+    }
+
+    public int getOffset(int column) {
+      return offsets[column];
+    }
+
+    public int getLength(int column) {
+      return lengths[column];
+    }
+  }
+
+  public static class Change {
+    private final ChangeType type;
+    private final Relation relation;
+    private final Tuple oldTuple;
+    private final Tuple newTuple;
+    private Relation[] truncated;
+    private boolean cascade;
+    private boolean restartIdentity;
+
+    Change(ChangeType type, Relation relation, Tuple oldTuple, Tuple newTuple) {
+      this.type = type;
+      this.relation = relation;
+      this.oldTuple = oldTuple;
+      this.newTuple = newTuple;
+    }
+
+    public ChangeType getType() {
+      return type;
+    }
+
+    /**
+     * Return the changed relation, null for a Truncate
+     */
+    public Relation getRelation() {
+      return relation;
+    }
+
+    /**
+     * Return the old key (or row with REPLICA IDENTITY FULL) of an
+     * Update or Delete, null if the server didn't send it
+     */
+    public Tuple getOldTuple() {
+      return oldTuple;
+    }
+
+    /**
+     * Return the new row of an Insert or Update
+     */
+    public Tuple getNewTuple() {
+      return newTuple;
+    }
+
+    /**
+     * Return the relations of a Truncate
+     */
+    public Relation[] getTruncated() {
+      return truncated;
+    }
+
+    public boolean isCascade() {
+      return cascade;
+    }
+
+    public boolean isRestartIdentity() {
+      return restartIdentity;
+    }
+  }
+
+  public static class Transaction {
+    private final long xid;
+    private long commitLsn;
+    private long endLsn;
+    private long commitTime;
+    private boolean partial;
+    private final List<Change> changes = new ArrayList<Change>();
+
+    Transaction(long xid) {
+      this.xid = xid;
+    }
+
+    public long getXid() {
+      return xid;
+    }
+
+    /**
+     * Return true if the transaction continues in the next batch, the
+     * commit LSN, end LSN and commit time are only set in the last one
+     */
+    public boolean isPartial() {
+      return partial;
+    }
+
+    /**
+     * Return the LSN of the commit record
+     */
+    public long getCommitLsn() {
+      return commitLsn;
+    }
+
+    /**
+     * Return the end of the transaction, acknowledge this position
+     * once the transaction is processed
+     */
+    public long getEndLsn() {
+      return endLsn;
+    }
+
+    /**
+     * Return the commit time, in microseconds since 2000-01-01
+     */
+    public long getCommitTime() {
+      return commitTime;
+    }
+
+    public List<Change> getChanges() {
+      return changes;
+    }
+  }
+}
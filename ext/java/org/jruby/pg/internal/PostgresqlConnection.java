@@ -1,10 +1,15 @@
 package org.jruby.pg.internal;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.Writer;
+import java.lang.reflect.InvocationTargetException;
 import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
@@ -14,15 +19,20 @@ import java.security.GeneralSecurityException;
 import java.security.KeyManagementException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 import org.jruby.pg.internal.ResultSet.ResultStatus;
 import org.jruby.pg.io.FlushableByteChannel;
 import org.jruby.pg.io.HandshakeStatus;
+import org.jruby.pg.io.ReadAheadChannel;
 import org.jruby.pg.io.SecureByteChannel;
 import org.jruby.pg.io.SocketByteChannel;
 import org.jruby.pg.messages.*;
@@ -39,6 +49,10 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
   private static final Map<String, String> staticParameters =
     new ConcurrentHashMap<String, String>();
 
+  // the timer wheel used to cancel queries that run past their
+  // deadline, see cancelAfter()
+  private static TimerWheel cancelTimer;
+
   // status fields
   private ConnectionStatus cStatus;
 
@@ -51,6 +65,29 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
   // not secure if the user didn't set `sslmode' to `required'
   private boolean trySSL;
 
+  // start the SSL handshake without sending an SSLRequest first, see
+  // the sslnegotiation connection parameter
+  private boolean directSSL;
+
+  // the SSL handshakes of this connection that negotiated a new session
+  // and that resumed a cached one, one per host that was tried
+  private int fullSslHandshakes;
+  private int resumedSslHandshakes;
+
+  // the ALPN protocol required by the server for direct SSL
+  private static final String DIRECT_SSL_ALPN_PROTOCOL = "postgresql";
+
+  private static final String ERRCODE_PROGRAM_LIMIT_EXCEEDED = "54000";
+  private static final String ERRCODE_IO_ERROR = "58030";
+
+  // the ring of the read ahead thread, up to 1MB is received before
+  // the server is throttled
+  private static final int READ_AHEAD_CHUNKS = 16;
+  private static final int READ_AHEAD_CHUNK_SIZE = 64 * 1024;
+
+  private static final List<String> TARGET_SESSION_ATTRS =
+    Arrays.asList("any", "read-write", "read-only", "primary", "standby", "prefer-standby");
+
   // socket, optional SslEngine and buffers. outBuffer and inBuffer
   // are always ready to do put() operations on
   private ByteBuffer outBuffer, inBuffer;
@@ -60,7 +97,26 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
   private BackendKeyData bkd;
 
   // store the original properties of the connection
-  private final Properties props;
+  private final Properties connectionProps;
+
+  // the properties of the host we're connected (or trying to
+  // connect) to, see Utils.hostProperties()
+  private Properties props;
+
+  // the hosts to try in order and the index of the current one
+  private List<Properties> hosts;
+  private int hostIndex;
+
+  // true while going over the hosts a second time accepting any
+  // server, after no standby was found for prefer-standby
+  private boolean preferStandbyFallback;
+
+  // the errors of the hosts that were tried so far
+  private final StringBuilder hostErrors = new StringBuilder();
+
+  // when connecting to the current host times out (System.nanoTime),
+  // 0 if there is no timeout
+  private long hostDeadline;
 
   // sotre the parameter status
   private final Map<String, String> parameters = new HashMap<String, String>();
@@ -96,6 +152,9 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
   // holds error messages from exceptions that aren't propagated back
   // to the caller
   private String errorMessage;
+  // the last error received from the server, its message is built
+  // by getErrorMessage() if errorMessage is null
+  private ErrorResponse errorResponse;
 
   // this is set if we opened this connection to cancel a request
   private boolean forCancel;
@@ -119,6 +178,49 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
   // to write the final size
   private int lengthPosition = -1, firstPosition = -1;
 
+  // the large object api of this connection, see getLargeObjectAPI()
+  private LargeObjectAPI largeObjectAPI;
+
+  // the state of the SCRAM exchange while authenticating
+  private ScramSha256 scram;
+
+  // the memory budget of the connection, see Utils.maxBufferSize()
+  // and Utils.maxResultSize(). 0 means unlimited
+  private int maxBufferSize;
+  private long maxResultSize;
+  // results bigger than spillThreshold are moved to a temporary file
+  // in spillDirectory, see Utils.spillThreshold()
+  private long spillThreshold;
+  private File spillDirectory;
+  // see Utils.dictionaryEncoding()
+  private boolean dictionaryEncoding;
+  // see Utils.parallelDecodeThreshold()
+  private int parallelDecodeThreshold;
+  // see Utils.readAhead(), readAhead is the channel reading the
+  // socket in the background once the connection is established
+  private boolean readAheadEnabled;
+  private ReadAheadChannel readAhead;
+
+  // number of function calls sent behind the one that is currently
+  // running, see sendFunctionCall()
+  private int pipelinedFunctionCalls;
+
+  // the descriptions of the named prepared statements, executing a
+  // statement whose description is known skips the Describe message
+  private final Map<PostgresqlString, StatementDescription> statementDescriptions =
+    new HashMap<PostgresqlString, StatementDescription>();
+  // the statement described by the current query, its description is
+  // cached when it arrives
+  private PostgresqlString describedStatement;
+  // the statement executed by the current query using its cached
+  // description, and the description of its rows
+  private PostgresqlString cachedStatement;
+  private RowDescription cachedRowDescription;
+
+  // the last CommandComplete received, it is returned again while the
+  // statements complete with the same tag, e.g. "INSERT 0 1"
+  private CommandComplete lastCommandComplete;
+
   // used to trace the activity of the connection
   private PrintWriter tracer;
 
@@ -130,6 +232,12 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
     }
   };
 
+  // the notices waiting to be delivered to the receiver, they are
+  // queued while parsing and delivered at the next result boundary,
+  // see deliverNotices(). Configured in connect(), see
+  // Utils.noticeQueueSize() and Utils.noticeRateLimit()
+  private NoticeQueue notices = new NoticeQueue(Utils.DEFAULT_NOTICE_QUEUE_SIZE, 0);
+
   /**
    * Create a new connection asynchronously using the specified
    * parameters
@@ -166,6 +274,30 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
    * @throws NoSuchAlgorithmException
    */
   public PollingStatus connectPoll() {
+    for(;;) {
+      PollingStatus status = connectPollHost();
+      if(status != PollingStatus.PGRES_POLLING_FAILED || invalidInput || !nextHost()) {
+        return status;
+      }
+    }
+  }
+
+  /**
+   * Return how long in milliseconds the caller of {@link
+   * #connectPoll} should wait for the socket, 0 means wait forever.
+   * connectPoll() moves on to the next host once the connect_timeout
+   * elapsed
+   */
+  public long getConnectTimeoutRemaining() {
+    if(hostDeadline == 0) {
+      return 0;
+    }
+    long remaining = TimeUnit.NANOSECONDS.toMillis(hostDeadline - System.nanoTime());
+    return Math.max(remaining, 1);
+  }
+
+
+  private PollingStatus connectPollHost() {
     try {
       return connectPollInternal();
     } catch(IOException ex) {
@@ -223,12 +355,25 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
    */
   public void close() throws IOException {
     if(closed()) {
+      // the socket of a connection lost by consumeInput() is still
+      // open, there's no one left to send the Terminate message to
+      if(socket != null && socket.isOpen()) {
+        if(readAhead != null) {
+          readAhead.stopReading();
+        }
+        socket.close();
+      }
       return;
     }
 
     // configure blocking since we have to send the Terminate message
     // anyway
     cStatus = ConnectionStatus.CONNECTION_BAD;
+    if(readAhead != null) {
+      // the socket cannot be made blocking while it's registered
+      // with the reader's selector
+      readAhead.stopReading();
+    }
     socket.configureBlocking(true);
     sendMessage(new Terminate());
     flush();
@@ -242,6 +387,21 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
     return cStatus == ConnectionStatus.CONNECTION_BAD;
   }
 
+  /**
+   * Return the host of the connection, when multiple hosts are given
+   * this is the one that was chosen
+   */
+  public String getHost() {
+    return Utils.host(props);
+  }
+
+  /**
+   * Return the port of the connection
+   */
+  public int getPort() {
+    return Utils.port(props);
+  }
+
   /**
    * Return the connection status, {@link ConnectionStatus}
    */
@@ -272,12 +432,33 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
   }
 
   /**
-   * Return the socket backing up this connection
+   * Return the socket backing up this connection. When the socket is
+   * read in the background, see {@link Utils#readAhead}, this is a
+   * channel that is ready for read when there is data to consume
+   * instead
    */
   public SelectableChannel getSocket() {
+    if(readAhead != null) {
+      return readAhead.getReadableChannel();
+    }
     return socket;
   }
 
+  /**
+   * Return the number of SSL handshakes that negotiated a new session
+   */
+  public int getFullSslHandshakes() {
+    return fullSslHandshakes;
+  }
+
+  /**
+   * Return the number of SSL handshakes that resumed a session cached
+   * by an earlier connection
+   */
+  public int getResumedSslHandshakes() {
+    return resumedSslHandshakes;
+  }
+
   /**
    * Return the pid received from the server on startup
    */
@@ -332,6 +513,19 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
    * @throws IOException
    */
   public ResultSet describePrepared(PostgresqlString queryName) throws IOException {
+    StatementDescription description = statementDescriptions.get(queryName);
+    if(description != null && description.isComplete() &&
+       cStatus == ConnectionStatus.CONNECTION_OK && aStatus == AsyncStatus.Idle) {
+      // the statement was already described, no need to ask again
+      ResultSet result = makeEmptyResult(ResultStatus.PGRES_COMMAND_OK);
+      result.setParameterDescription(description.getParameters());
+      RowDescription rows = description.getRows(Format.Text);
+      if(rows != null) {
+        result.setDescription(rows);
+      }
+      return result;
+    }
+
     execStart();
     sendDescribe(queryName, StatementType.Prepared);
     return execFinish();
@@ -360,6 +554,47 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
     return execFinish();
   }
 
+  /**
+   * Call the function with the given oid using the fastpath
+   * FunctionCall message. The result of the function is returned by
+   * {@link ResultSet#getFunctionResult}
+   *
+   * @throws IOException
+   */
+  public ResultSet fn(int functionOid, Value[] args, Format resultFormat) throws IOException {
+    execStart();
+    sendFunctionCall(functionOid, args, resultFormat);
+    return execFinish();
+  }
+
+  /**
+   * Asynchronous version of {@link #fn}. Unlike the other send
+   * methods this can be called again before the results of the
+   * previous function calls are read, in which case the call is
+   * pipelined behind them. {@link #getResult} returns one result per
+   * function call in the order they were sent, followed by null once
+   * all the calls completed.
+   *
+   * @throws IOException
+   */
+  public boolean sendFunctionCall(int functionOid, Value[] args, Format resultFormat)
+  throws IOException {
+    if(qClass == QueryClass.FunctionCall && aStatus != AsyncStatus.Idle &&
+       cStatus == ConnectionStatus.CONNECTION_OK) {
+      pipelinedFunctionCalls++;
+    } else {
+      sendQueryStart();
+      qClass = QueryClass.FunctionCall;
+      aStatus = AsyncStatus.Busy;
+      lastQuery = null;
+    }
+
+    sendMessage(new FunctionCall(functionOid, args, resultFormat));
+
+    flush();
+    return true;
+  }
+
   /**
    * Execute a query asynchronously
    *
@@ -395,14 +630,14 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
                                  Format resultFormat, int[] oids) throws IOException {
     sendQueryStart();
 
-    PostgresqlString empty = new PostgresqlString("");
+    PostgresqlString empty = PostgresqlString.EMPTY;
 
     // send parse, bind, execute and sync
     sendMessage(new Parse(empty, query, oids));
     sendMessage(new Bind(empty, empty, values, resultFormat));
-    sendMessage(new Describe(empty, StatementType.Portal));
-    sendMessage(new Execute(empty));
-    sendMessage(new Sync());
+    sendMessage(PreEncodedMessage.DESCRIBE_UNNAMED_PORTAL);
+    sendMessage(PreEncodedMessage.EXECUTE_UNNAMED);
+    sendMessage(PreEncodedMessage.SYNC);
 
     // remember the state and the query that we are running
     qClass = QueryClass.Extended;
@@ -424,7 +659,8 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
     sendQueryStart();
 
     sendMessage(new Parse(name, query, oids));
-    sendMessage(new Sync());
+    sendMessage(PreEncodedMessage.SYNC);
+    statementDescriptions.remove(name);
 
     qClass = QueryClass.Prepare;
     aStatus = AsyncStatus.Busy;
@@ -460,11 +696,21 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
    */
   public boolean sendQueryPrepared(PostgresqlString name, Value[] values,
                                    Format format) throws IOException {
-    PostgresqlString empty = new PostgresqlString("");
+    PostgresqlString empty = PostgresqlString.EMPTY;
+    StatementDescription description = statementDescriptions.get(name);
     sendMessage(new Bind(empty, name, values, format));
-    sendMessage(new Describe(empty, StatementType.Portal));
-    sendMessage(new Execute(empty));
-    sendMessage(new Sync());
+    if(description != null && description.isRowsKnown()) {
+      // the result will be created from the cached description when
+      // the BindComplete arrives
+      cachedStatement = name;
+      cachedRowDescription = description.getRows(format);
+    } else {
+      sendMessage(PreEncodedMessage.DESCRIBE_UNNAMED_PORTAL);
+      // the unnamed statement is replaced by every query, don't cache it
+      describedStatement = name.getBytes().length == 0 ? null : name;
+    }
+    sendMessage(PreEncodedMessage.EXECUTE_UNNAMED);
+    sendMessage(PreEncodedMessage.SYNC);
 
     qClass = QueryClass.Extended;
     aStatus = AsyncStatus.Busy;
@@ -482,21 +728,37 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
   public ResultSet getResult() throws IOException {
     Selector selector = Selector.open();
     SelectionKey key = socket.register(selector, 0);
+    SelectionKey readKey = key;
+    if(readAhead != null) {
+      readKey = readAhead.getReadableChannel().register(selector, 0);
+    }
 
     // while we are busy keep reading more data
     while(isBusy()) {
+      if(cStatus == ConnectionStatus.CONNECTION_BAD) {
+        // nothing else will arrive, report the closed connection like
+        // libpq and go idle
+        selector.close();
+        aStatus = AsyncStatus.Idle;
+        return makeEmptyResult(ResultStatus.PGRES_FATAL_ERROR).appendErrorMessage(getErrorMessage());
+      }
+
       // wait until we send all the data in the output buffer
       while(!flush()) {
+        readKey.interestOps(0);
         key.interestOps(SelectionKey.OP_WRITE);
         selector.select();
       }
 
-      key.interestOps(SelectionKey.OP_READ);
+      key.interestOps(0);
+      readKey.interestOps(SelectionKey.OP_READ);
       selector.select();
+      selector.selectedKeys().clear();
       consumeInput();
     }
 
     selector.close();
+    deliverNotices();
 
     switch(aStatus) {
     case Idle:
@@ -538,6 +800,9 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
    * for read. This method will only buffer the data and will not
    * attempt to parse it. Parsing happen in isBusy() or getResult().
    *
+   * If the server closed the connection the status becomes
+   * CONNECTION_BAD, the data already received can still be parsed
+   *
    * @throws IOException
    */
   public void consumeInput() throws IOException {
@@ -552,18 +817,51 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
     // response to something that the server didn't receive yet
     flush();
 
+    int read = 0;
     do {
       // make the inBuffer ready for reading from the channel
       if(!inBuffer.hasRemaining()) {
         // if the inBuffer doesn't have enough data, double the capacity
-        ByteBuffer newInBuffer = ByteBuffer.allocate(inBuffer.capacity() * 2);
+        int capacity = inBuffer.capacity() * 2;
+        if(maxBufferSize > 0 && capacity > maxBufferSize) {
+          // over budget, only grow if the buffer can't hold the
+          // message being received. Otherwise stop reading and let
+          // TCP throttle the server until the messages in the buffer
+          // are consumed
+          int needed = pendingMessageSize();
+          if(needed <= inBuffer.capacity()) {
+            break;
+          }
+          capacity = Math.max(needed, maxBufferSize);
+        }
+        ByteBuffer newInBuffer = ByteBuffer.allocate(capacity);
         inBuffer.flip();
         newInBuffer.put(inBuffer);
         inBuffer = newInBuffer;
       }
       // as long as the channel is returning data keep going,
       // otherwise return
-    } while(channel.read(inBuffer) > 0);
+    } while((read = channel.read(inBuffer)) > 0);
+
+    if(read < 0 && cStatus == ConnectionStatus.CONNECTION_OK) {
+      // e.g. the backend was terminated or the server restarted, the
+      // socket stays readable so waiting for more data would spin
+      cStatus = ConnectionStatus.CONNECTION_BAD;
+      errorMessage = "server closed the connection unexpectedly";
+      errorResponse = null;
+    }
+  }
+
+  /**
+   * Return the size of the first message in the inBuffer, including
+   * the type byte. Parsed messages are compacted away, so the first
+   * message is always at the beginning of the buffer
+   */
+  private int pendingMessageSize() {
+    if(inBuffer.position() < 5) {
+      return 5;
+    }
+    return inBuffer.getInt(1) + 1;
   }
 
   /**
@@ -577,6 +875,22 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
     return aStatus == AsyncStatus.Busy;
   }
 
+  /**
+   * Return true if the connection is in CopyBoth mode, i.e. it's
+   * streaming replication data after START_REPLICATION
+   */
+  public boolean isCopyBoth() {
+    return aStatus == AsyncStatus.CopyBoth;
+  }
+
+  /**
+   * Return true if the connection is in CopyIn mode, which is also the
+   * case after the server ended a CopyBoth stream with CopyDone
+   */
+  public boolean isCopyIn() {
+    return aStatus == AsyncStatus.CopyIn;
+  }
+
   /**
    * Set single row mode to true. This method has to be called after
    * the starting a query asynchronously and before any results are
@@ -627,27 +941,109 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
    * @throws GeneralSecurityException
    */
   public void cancel() throws IOException {
-    PostgresqlConnection conn = null;
+    cancel(0);
+  }
+
+  /**
+   * Cancel the current request. The connection used to send the
+   * CancelRequest is driven in non blocking mode and abandoned if
+   * connecting, sending the request or waiting for the server to
+   * process it takes longer than timeoutMillis.
+   *
+   * @param timeoutMillis the maximum time to spend, 0 means no timeout
+   * @return true if the CancelRequest was delivered and processed by
+   *         the server, false otherwise
+   */
+  public boolean cancel(long timeoutMillis) {
+    long deadline = timeoutMillis > 0 ? System.currentTimeMillis() + timeoutMillis : 0;
+    PostgresqlConnection conn = new PostgresqlConnection(props);
+    conn.forCancel = true;
+    conn.nonBlocking = true;
+    Selector selector = null;
     try {
-      conn = PostgresqlConnection.connectDbCommon(props, true);
-      // we should do this synchronously
-      conn.socket.configureBlocking(true);
+      conn.connect();
+      selector = Selector.open();
+      SelectionKey key = conn.socket.register(selector, 0);
+
+      PollingStatus status;
+      while((status = conn.connectPoll()) != PollingStatus.PGRES_POLLING_OK) {
+        if(status == PollingStatus.PGRES_POLLING_FAILED) {
+          return false;
+        }
+        int ops = status == PollingStatus.PGRES_POLLING_READING ?
+                  SelectionKey.OP_READ : SelectionKey.OP_WRITE;
+        if(!waitFor(selector, key, ops, deadline)) {
+          return false;
+        }
+      }
+
       conn.sendMessage(new CancelRequest(bkd.getPid(), bkd.getSecret()));
-      while(!conn.flush()) ;
-      // try to close the connection
+      while(!conn.flush()) {
+        if(!waitFor(selector, key, SelectionKey.OP_WRITE, deadline)) {
+          return false;
+        }
+      }
+
       // wait for the connection to be closed by the
       // server. That's the only way we have to tell that the
       // server has processed the CancelRequest. Otherwise, we
       // might issue a new query too fast before the previous
       // CancelRequest is processed which will cause the new query
       // to be cancelled.
-      conn.channel.read(ByteBuffer.allocate(1));
+      ByteBuffer oneByte = ByteBuffer.allocate(1);
+      while(conn.socket.read(oneByte) >= 0) {
+        oneByte.clear();
+        if(!waitFor(selector, key, SelectionKey.OP_READ, deadline)) {
+          return false;
+        }
+      }
+      return true;
     } catch(IOException ex) {
       // ignore the exception
+      return false;
     } finally {
-      if(conn != null) {
-        conn.close();
+      // the server closes the connection after a CancelRequest, so
+      // don't bother sending a Terminate
+      try {
+        if(selector != null) {
+          selector.close();
+        }
+        conn.socket.close();
+      } catch(IOException ex) {
+        // ignore
+      }
+    }
+  }
+
+  /**
+   * Send a CancelRequest if the current query is still running after
+   * timeoutMillis. All connections share one {@link TimerWheel} so
+   * pending deadlines don't cost a thread each. The returned timeout
+   * must be passed to {@link #clearCancelAfter} once the query is
+   * done.
+   */
+  public TimerWheel.Timeout cancelAfter(long timeoutMillis) {
+    final long cancelTimeout = Utils.cancelTimeout(props);
+    return getCancelTimer().schedule(new Runnable() {
+      public void run() {
+        cancel(cancelTimeout);
       }
+    }, timeoutMillis);
+  }
+
+  /**
+   * Clear a deadline set by {@link #cancelAfter}. If the deadline
+   * already expired wait for the CancelRequest to be processed,
+   * otherwise it could cancel the next query on this connection.
+   */
+  public void clearCancelAfter(TimerWheel.Timeout timeout) {
+    if(timeout.cancel()) {
+      return;
+    }
+    try {
+      timeout.awaitCompletion(Utils.cancelTimeout(props));
+    } catch(InterruptedException ex) {
+      Thread.currentThread().interrupt();
     }
   }
 
@@ -681,6 +1077,7 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
    */
   public NotificationResponse notifies() throws IOException {
     parseInput();
+    deliverNotices();
 
     if(notifications.isEmpty()) {
       return null;
@@ -724,13 +1121,13 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
     if(err != null) {
       sendMessage(new CopyFail(err));
     } else {
-      sendMessage(new CopyDone());
+      sendMessage(CopyDone.INSTANCE);
     }
 
     // if we're not in simple mode we must resend the Sync since the
     // first one was ignored during the CopyIn mode
     if(qClass != QueryClass.Simple) {
-      sendMessage(new Sync());
+      sendMessage(PreEncodedMessage.SYNC);
     }
 
     // prepare the result for the next result
@@ -764,7 +1161,7 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
       // try to read some data
       consumeInput();
 
-      if(!hasAsynchronousMessage() && !hasCopyMessage()) {
+      if(inBuffer.position() > 0 && !hasAsynchronousMessage() && !hasCopyMessage()) {
         // any other message should terminate the CopyOut and/or
         // CopyBoth modes
         aStatus = AsyncStatus.Busy;
@@ -773,6 +1170,11 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
 
       ProtocolMessage msg = getMessage();
       if(msg == null) {
+        deliverNotices();
+        if(cStatus == ConnectionStatus.CONNECTION_BAD) {
+          // the server closed the connection without ending the copy
+          throw new IOException(getErrorMessage());
+        }
         if(async) {
           return new byte[0];
         }
@@ -780,7 +1182,7 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
         // if we're waiting synchronously, then block until the socket
         // is ready for read
         Selector selector = Selector.open();
-        socket.register(selector, SelectionKey.OP_READ);
+        getSocket().register(selector, SelectionKey.OP_READ);
         selector.select();
         selector.close();
         continue;
@@ -804,6 +1206,7 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
           aStatus = AsyncStatus.Busy;
         }
         result = null;
+        deliverNotices();
         return null;
 
       default:
@@ -816,7 +1219,12 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
    * Create a {@link LargeObjectAPI} that uses this connection
    */
   public LargeObjectAPI getLargeObjectAPI() {
-    return new LargeObjectAPI(this);
+    // the api caches the oids of the large object functions, so keep
+    // it around for the lifetime of the connection
+    if(largeObjectAPI == null) {
+      largeObjectAPI = new LargeObjectAPI(this);
+    }
+    return largeObjectAPI;
   }
 
   public String getClientEncoding() {
@@ -852,14 +1260,14 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
     return escapeStringInternal(string, parameters);
   }
 
-  public static byte[] escapeBytesStatic(byte[] bytes) {
+  public static byte[] escapeBytesStatic(byte[] bytes, int offset, int length) {
     boolean conformingStrings = getStandardConformingStrings(staticParameters);
-    return escapeBytesInternal(bytes, conformingStrings, false);
+    return Bytea.escape(bytes, offset, length, conformingStrings, false);
   }
 
   public byte[] escapeBytes(byte[] bytes) {
     boolean conformingStrings = getStandardConformingStrings(parameters);
-    return escapeBytesInternal(bytes, conformingStrings, getServerVersion() >= 9000);
+    return Bytea.escape(bytes, 0, bytes.length, conformingStrings, getServerVersion() >= 9000);
   }
 
   public static String escapeIdentifier(String ident) {
@@ -875,9 +1283,22 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
    * @return
    */
   public String getErrorMessage() {
+    if(errorMessage == null && errorResponse != null) {
+      errorMessage = errorResponse.getErrorMessage();
+    }
     return errorMessage;
   }
 
+  /**
+   * Make the given error the last error of the connection without
+   * building its message, most errors raised by an application that
+   * expects them are never printed
+   */
+  private void setErrorResponse(ErrorResponse error) {
+    errorMessage = null;
+    errorResponse = error;
+  }
+
   /**
    * Create a new empty result with the given status
    */
@@ -989,6 +1410,24 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
     return bytes;
   }
 
+  public CommandComplete getCommandComplete() {
+    int start = inBuffer.position();
+    int end = start;
+    while(inBuffer.get(end) != '\0') {
+      end++;
+    }
+    CommandComplete last = lastCommandComplete;
+    if(last != null && last.hasTag(inBuffer.array(), inBuffer.arrayOffset() + start, end - start)) {
+      inBuffer.position(end + 1);
+      if(tracer != null) {
+        tracer.printf("From backend> \"%s\"\n", last.getTag());
+      }
+      return last;
+    }
+    lastCommandComplete = new CommandComplete(getString());
+    return lastCommandComplete;
+  }
+
   // ProtocolWriter methods
 
   public void writeMsgStart(byte b) {
@@ -1069,6 +1508,21 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
     writeString(s.getBytes());
   }
 
+  public void writeEncoded(byte[] message) {
+    if(lengthPosition >= 0) {
+      throw new RuntimeException("lengthPosition should be negative");
+    }
+    expandOutputBuffer(message.length);
+    outBuffer.put(message);
+    if(tracer != null) {
+      tracer.printf("To backend> Msg %c\n", message[0]);
+      if(message.length > 5) {
+        tracer.printf("To backend> %s\n", new String(message, 5, message.length - 5));
+      }
+      tracer.printf("To backend> Msg complete, length %d\n", message.length);
+    }
+  }
+
   public void writeMsgEnd() {
     if(lengthPosition < 0) {
       throw new RuntimeException("lengthPosition shouldn't be negative");
@@ -1105,14 +1559,26 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
 
   private PollingStatus connectPollInternal()
   throws IOException, GeneralSecurityException {
+    if(hostDeadline != 0 && System.nanoTime() - hostDeadline >= 0) {
+      throw new IOException("timeout expired");
+    }
+
     for(;;) {
       switch(cStatus) {
 
       case CONNECTION_NEEDED:
         // start the connection
-        String host = Utils.host(props);
-        int port = Utils.port(props);
-        socket.connect(new InetSocketAddress(host, port));
+        if(Utils.isUnixSocket(props)) {
+          socket.connect(unixSocketAddress(Utils.unixSocketPath(props)));
+        } else {
+          String host = Utils.host(props);
+          int port = Utils.port(props);
+          InetSocketAddress address = new InetSocketAddress(host, port);
+          if(address.isUnresolved()) {
+            throw new IOException("could not translate host name \"" + host + "\" to address");
+          }
+          socket.connect(address);
+        }
         cStatus = ConnectionStatus.CONNECTION_STARTED;
         return PollingStatus.PGRES_POLLING_WRITING;
 
@@ -1132,7 +1598,14 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
         // the connection was made and the connection is ready for
         // write. send SSLRequest or StartupRequest depending on the
         // ssl preference
-        if(trySSL && channel == null) {
+        if(trySSL && channel == null && directSSL) {
+          // start the handshake right away, the server recognizes it
+          // by the first byte of the TLS ClientHello
+          channel = new SecureByteChannel(socket, verifySSL(), Utils.host(props), Utils.port(props),
+                                          new String[] {DIRECT_SSL_ALPN_PROTOCOL});
+          cStatus = ConnectionStatus.CONNECTION_SSL_STARTUP;
+          return finishHandshake();
+        } else if(trySSL && channel == null) {
           // if we should try ssl and the channel wasn't created yet,
           // see if the server is willing to use ssl
 
@@ -1164,7 +1637,7 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
         String user = Utils.user(props);
         String dbname = Utils.dbname(props);
         String options = Utils.options(props);
-        sendMessage(new Startup(user, dbname, options));
+        sendMessage(new Startup(user, dbname, options, Utils.replication(props)));
         // we should be able to send the entire message, otherwise
         // just fail
         if(!flush()) {
@@ -1192,12 +1665,7 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
         case 'S':
           // server ready for SSL handshake, initialize the SSLEngine
           // and start the handshake
-          boolean verify = false;
-          String sslmode = Utils.ssl(props);
-          if(sslmode.equals("verify-ca") || sslmode.equals("verify-full")) {
-            verify = true;
-          }
-          channel = new SecureByteChannel(socket, verify);
+          channel = new SecureByteChannel(socket, verifySSL(), Utils.host(props), Utils.port(props));
           return finishHandshake();
 
         case 'N':
@@ -1301,54 +1769,6 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
     return out.toString();
   }
 
-  private static byte[] escapeBytesInternal(byte[] bytes, boolean conformingStrings,
-      boolean useHex) {
-
-    ByteArrayOutputStream out = new ByteArrayOutputStream();
-    PrintWriter writer = new PrintWriter(out);
-
-    if(useHex) {
-      if(!conformingStrings) {
-        writer.append('\\');
-      }
-      writer.append("\\x");
-    }
-
-    for(int i = 0; i < bytes.length; i++) {
-      byte b = bytes[i];
-      // we use c to test if b > 0x7e below, we can't do this test
-      // using b, otherwise it will be converted to a negative int if
-      // it's > 0x7e and the test will always by false
-      char c = (char)(b & 0xFF);
-
-      if(useHex) {
-        writer.printf("%02x", b);
-      } else if(c < 0x20 || c > 0x7e) {
-        if(!conformingStrings) {
-          writer.append("\\");
-        }
-        writer.printf("\\%03o", b);
-      } else if(b == '\'') {
-        // escape the single quote
-        writer.append("\'\'");
-      } else if(b == '\\') {
-        // escape the backslash
-        if(!conformingStrings) {
-          // append two backslashes
-          writer.append("\\\\");
-        }
-        // append two backslashes
-        writer.append("\\\\");
-      } else {
-        // all other characters, print as themselves
-        writer.write(b);
-      }
-    }
-
-    writer.close();
-    return out.toByteArray();
-  }
-
   /**
    * Return true if the standard_conforming_strings parameter is set
    * to "on", false otherwise. If this method returns true, then the
@@ -1383,22 +1803,31 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
     // the return value of connectPoll
     Selector selector = Selector.open();
     try {
-      SelectionKey key = conn.getSocket().register(selector, 0);
+      SelectableChannel socket = conn.getSocket();
+      SelectionKey key = socket.register(selector, 0);
+      PollingStatus status = conn.connectPoll();
       for(;;) {
-        PollingStatus status = conn.connectPoll();
         switch(status) {
-        case PGRES_POLLING_WRITING:
-          key.interestOps(SelectionKey.OP_WRITE);
-          selector.select();
-          continue;
-        case PGRES_POLLING_READING:
-          key.interestOps(SelectionKey.OP_READ);
-          selector.select();
-          continue;
         case PGRES_POLLING_OK:
         case PGRES_POLLING_FAILED:
           return conn;
+        default:
+          break;
         }
+
+        if(conn.getSocket() != socket) {
+          // moved on to the next host
+          key.cancel();
+          selector.selectNow();
+          socket = conn.getSocket();
+          key = socket.register(selector, 0);
+        }
+
+        key.interestOps(status == PollingStatus.PGRES_POLLING_WRITING ?
+                        SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        selector.select(conn.getConnectTimeoutRemaining());
+        selector.selectedKeys().clear();
+        status = conn.connectPoll();
       }
     } finally {
       selector.close();
@@ -1416,7 +1845,10 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
   private void sendDescribe(PostgresqlString name, StatementType type)
   throws IOException {
     sendMessage(new Describe(name, type));
-    sendMessage(new Sync());
+    sendMessage(PreEncodedMessage.SYNC);
+    if(type == StatementType.Prepared && name.getBytes().length > 0) {
+      describedStatement = name;
+    }
     aStatus = AsyncStatus.Busy;
     qClass = QueryClass.Describe;
     lastQuery = null;
@@ -1450,7 +1882,10 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
       // assign result to lastResult only if lastResult is null or
       // doesn't have an error
       if(lastResult == null || lastResult.getStatus() != ResultStatus.PGRES_FATAL_ERROR) {
+        discardResult(lastResult);
         lastResult = result;
+      } else {
+        discardResult(result);
       }
 
       if(lastResult.getStatus() == ResultStatus.PGRES_FATAL_ERROR) {
@@ -1498,10 +1933,43 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
     singleRowMode = false;
   }
 
+  /**
+   * Wait for the given operations to be ready on the key's channel.
+   * Return false if the deadline passed, a deadline of 0 means wait
+   * forever
+   */
+  private static boolean waitFor(Selector selector, SelectionKey key,
+                                 int ops, long deadline) throws IOException {
+    key.interestOps(ops);
+    if(deadline == 0) {
+      selector.select();
+      return true;
+    }
+    long remaining = deadline - System.currentTimeMillis();
+    if(remaining <= 0) {
+      return false;
+    }
+    selector.select(remaining);
+    return true;
+  }
+
+  /**
+   * Return the timer wheel shared by all connections to enforce query
+   * deadlines and send replication status updates, it's created the
+   * first time it's needed
+   */
+  static synchronized TimerWheel getCancelTimer() {
+    if(cancelTimer == null) {
+      cancelTimer = new TimerWheel("pg-cancel-timer", 10, 512, 2);
+    }
+    return cancelTimer;
+  }
+
   /**
    * Construct a new postgresql connection using the given properties
    */
   private PostgresqlConnection(Properties props) {
+    this.connectionProps = props;
     this.props = props;
     inBuffer = ByteBuffer.allocate(4096);
     outBuffer = ByteBuffer.allocate(4096);
@@ -1510,13 +1978,98 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
     cStatus = ConnectionStatus.CONNECTION_NEEDED;
   }
 
+  /**
+   * Create the error result returned when a result exceeds
+   * max_result_size
+   */
+  private ResultSet makeResultTooLarge() {
+    return makeClientErrorResult(ERRCODE_PROGRAM_LIMIT_EXCEEDED,
+                                 "result exceeds max_result_size (" + maxResultSize + " bytes)",
+                                 "Use single row mode to stream large results.");
+  }
+
+  /**
+   * Create an error result for an error detected on this side of the
+   * connection while receiving a result
+   */
+  private ResultSet makeClientErrorResult(String sqlState, String message, String hint) {
+    ErrorResponse error = new ErrorResponse(0);
+    error.setField(ErrorField.PG_DIAG_SEVERITY.getCode(), "ERROR");
+    error.setField(ErrorField.PG_DIAG_SQLSTATE.getCode(), sqlState);
+    error.setField(ErrorField.PG_DIAG_MESSAGE_PRIMARY.getCode(), message);
+    if(hint != null) {
+      error.setField(ErrorField.PG_DIAG_MESSAGE_HINT.getCode(), hint);
+    }
+
+    ResultSet res = makeEmptyResult(ResultStatus.PGRES_FATAL_ERROR);
+    res.setErrorResponse(error);
+    lastSqlState = sqlState;
+    setErrorResponse(error);
+    return res;
+  }
+
+  /**
+   * Set the description of the rows of a new result
+   */
+  private void setRowDescription(ResultSet res, RowDescription description) {
+    res.setDescription(description);
+    res.setSpillThreshold(spillThreshold, spillDirectory);
+    res.setDictionaryEncoding(dictionaryEncoding);
+    res.setParallelDecodeThreshold(parallelDecodeThreshold);
+  }
+
+  /**
+   * Return the cached description of the given statement, creating
+   * it if needed
+   */
+  private StatementDescription describedStatement(PostgresqlString statement) {
+    StatementDescription description = statementDescriptions.get(statement);
+    if(description == null) {
+      description = new StatementDescription();
+      statementDescriptions.put(statement, description);
+    }
+    return description;
+  }
+
+  /**
+   * Clear a result that won't be returned, so its temporary file is
+   * deleted if it was spilled to disk
+   */
+  private static void discardResult(ResultSet res) {
+    if(res == null) {
+      return;
+    }
+    try {
+      res.clear();
+    } catch(IOException ex) {
+      // nothing we can do about it
+    }
+  }
+
+  private boolean verifySSL() {
+    String sslmode = Utils.ssl(props);
+    return sslmode.equals("verify-ca") || sslmode.equals("verify-full");
+  }
+
   /**
    * Finishes the SSL handshake
    */
   private PollingStatus finishHandshake() throws IOException {
-    HandshakeStatus status = ((SecureByteChannel) channel).doHandshake();
+    SecureByteChannel secureChannel = (SecureByteChannel) channel;
+    HandshakeStatus status = secureChannel.doHandshake();
     switch(status) {
     case FINISHED:
+      if(secureChannel.isSessionResumed()) {
+        resumedSslHandshakes++;
+      } else {
+        fullSslHandshakes++;
+      }
+      if(directSSL &&
+         !DIRECT_SSL_ALPN_PROTOCOL.equals(secureChannel.getApplicationProtocol())) {
+        // the server must confirm that it speaks the postgresql
+        // protocol, otherwise we could be talking to anything
+        throw new IOException("server did not negotiate the \"" + DIRECT_SSL_ALPN_PROTOCOL + "\" ALPN protocol");
+      }
       cStatus = ConnectionStatus.CONNECTION_MADE;
       // the CONNECTION_MADE will send a StartupRequest, so we are
       // blocking waiting for a write
@@ -1560,6 +2113,8 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
       switch(msg.getType()) {
       case AuthenticationCleartextPassword:
       case AuthenticationMD5Password:
+      case AuthenticationSASL:
+      case AuthenticationSASLContinue:
         // send password
         sendMessage(createAuthenticationMessage(msg));
         if(!flush()) {
@@ -1570,7 +2125,22 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
         // read more messages from the buffer
         continue;
 
+      case AuthenticationSASLFinal:
+        // make sure the server knows the password too, no response
+        // is expected
+        if(scram == null) {
+          throw new IOException("unexpected SASL final message");
+        }
+        scram.verifyServerFinal(((AuthenticationSASLFinal) msg).getData());
+        scram = null;
+        continue;
+
       case AuthenticationOk:
+        if(scram != null) {
+          // the server skipped the SASL final message, i.e. it never
+          // proved that it knows the password
+          throw new IOException("SCRAM authentication completed without verifying the server signature");
+        }
         // authentication succeeded
         cStatus = ConnectionStatus.CONNECTION_AUTH_OK;
         // read more messages from the buffer
@@ -1587,9 +2157,32 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
         continue;
 
       case ReadyForQuery:
+        String mismatch = checkTargetSessionAttrs();
+        if(mismatch != null) {
+          // not the kind of server we're looking for, say goodbye
+          // and let connectPoll() try the next host
+          sendMessage(new Terminate());
+          flush();
+          throw new IOException(mismatch);
+        }
+
+        if(readAheadEnabled && channel instanceof SocketByteChannel) {
+          // the SSL engine cannot be shared with a reader thread, tls
+          // connections are always read on demand
+          readAhead = new ReadAheadChannel(socket, channel, READ_AHEAD_CHUNKS, READ_AHEAD_CHUNK_SIZE);
+          channel = readAhead;
+        }
+
         // we are now ready for query and the connection has been established
         cStatus = ConnectionStatus.CONNECTION_OK;
+        hostDeadline = 0;
+        // forget about the hosts that failed
+        errorMessage = null;
+        errorResponse = null;
         aStatus = AsyncStatus.Idle;
+        pipelinedFunctionCalls = 0;
+        // the prepared statements don't survive the session
+        statementDescriptions.clear();
         xStatus = ((ReadyForQuery)msg).getTransactionStatus();
         return PollingStatus.PGRES_POLLING_OK;
 
@@ -1597,7 +2190,7 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
         // failed for some reason
         cStatus = ConnectionStatus.CONNECTION_BAD;
         lastSqlState = ((ErrorResponse)msg).getErrorField(ErrorField.PG_DIAG_SQLSTATE);
-        errorMessage = ((ErrorResponse)msg).getErrorMessage();
+        setErrorResponse((ErrorResponse) msg);
         return PollingStatus.PGRES_POLLING_FAILED;
 
       default:
@@ -1641,6 +2234,22 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
         // if I know what I'm doing then we shouldn't be here
         return null;
       }
+    case AuthenticationSASL:
+      if(!((AuthenticationSASL) msg).getMechanisms().contains(ScramSha256.MECHANISM)) {
+        throw new IOException("none of the server's SASL authentication mechanisms are supported");
+      }
+      if(password == null) {
+        throw new IOException("no password supplied");
+      }
+      scram = new ScramSha256(user, password);
+      return new SASLInitialResponse(ScramSha256.MECHANISM, scram.clientFirstMessage());
+
+    case AuthenticationSASLContinue:
+      if(scram == null) {
+        throw new IOException("unexpected SASL continue message");
+      }
+      return new SASLResponse(scram.clientFinalMessage(((AuthenticationSASLContinue) msg).getData()));
+
     default:
       throw new IllegalArgumentException("Unsupported authentication type: " +
                                          msg.getType().name());
@@ -1699,19 +2308,40 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
           result = makeEmptyResult(ResultStatus.PGRES_COMMAND_OK);
         }
         result.setCmdStatus((CommandComplete) msg);
+        String command = ((CommandComplete) msg).getCommand();
+        if(command.startsWith("DEALLOCATE") || command.startsWith("DISCARD")) {
+          // the tag doesn't say which statements are gone
+          statementDescriptions.clear();
+        }
         aStatus = AsyncStatus.Ready;
         break;
 
       case ErrorResponse:
+        if(cachedStatement != null) {
+          // describe the statement again next time, just in case
+          statementDescriptions.remove(cachedStatement);
+          cachedStatement = null;
+          cachedRowDescription = null;
+        }
+        describedStatement = null;
+        discardResult(result);
         result = makeEmptyResult(ResultStatus.PGRES_FATAL_ERROR);
         result.setErrorResponse((ErrorResponse) msg);
         lastSqlState = ((ErrorResponse)msg).getErrorField(ErrorField.PG_DIAG_SQLSTATE);
-        errorMessage = ((ErrorResponse)msg).getErrorMessage();
+        setErrorResponse((ErrorResponse) msg);
         aStatus = AsyncStatus.Ready;
         break;
 
       case ReadyForQuery:
         xStatus = ((ReadyForQuery)msg).getTransactionStatus();
+        if(pipelinedFunctionCalls > 0) {
+          // the next pipelined function call is now running
+          pipelinedFunctionCalls--;
+          break;
+        }
+        describedStatement = null;
+        cachedStatement = null;
+        cachedRowDescription = null;
         aStatus = AsyncStatus.Idle;
         break;
 
@@ -1726,7 +2356,25 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
         }
         break;
 
+      case FunctionCallResponse:
+        result = makeEmptyResult(ResultStatus.PGRES_COMMAND_OK);
+        result.setFunctionResult(((FunctionCallResponse) msg).getValue());
+        aStatus = AsyncStatus.Ready;
+        break;
+
       case BindComplete:
+        if(cachedStatement != null) {
+          // the Describe was skipped, act as if the cached
+          // description was received
+          if(cachedRowDescription != null && result == null) {
+            result = makeEmptyResult(ResultStatus.PGRES_TUPLES_OK);
+            setRowDescription(result, cachedRowDescription);
+          }
+          cachedStatement = null;
+          cachedRowDescription = null;
+        }
+        break;
+
       case CloseComplete:
         // we can safely ignore these messages
         break;
@@ -1734,6 +2382,9 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
       case ParameterDescription:
         result = makeEmptyResult(ResultStatus.PGRES_COMMAND_OK);
         result.setParameterDescription((ParameterDescription) msg);
+        if(describedStatement != null) {
+          describedStatement(describedStatement).setParameters((ParameterDescription) msg);
+        }
         break;
 
       case RowDescription:
@@ -1756,7 +2407,11 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
         }
 
         // get the row descrption
-        result.setDescription((RowDescription)msg);
+        setRowDescription(result, (RowDescription)msg);
+        if(describedStatement != null) {
+          describedStatement(describedStatement).setRows((RowDescription)msg);
+          describedStatement = null;
+        }
 
         // if this is a Describe query then we're done
         if(qClass == QueryClass.Describe) {
@@ -1768,6 +2423,10 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
       case NoData:
         // NoData means the query won't return data, thus we won't get
         // a RowDescription
+        if(describedStatement != null) {
+          describedStatement(describedStatement).setRows(null);
+          describedStatement = null;
+        }
         if(qClass == QueryClass.Describe) {
           if(result == null) {
             result = makeEmptyResult(ResultStatus.PGRES_COMMAND_OK);
@@ -1797,7 +2456,22 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
           aStatus = AsyncStatus.Ready;
         }
 
-        result.appendRow((DataRow) msg);
+        try {
+          result.appendRow((DataRow) msg);
+        } catch(IOException ex) {
+          // the rows couldn't be spilled to disk, the remaining rows
+          // are skipped
+          discardResult(result);
+          result = makeClientErrorResult(ERRCODE_IO_ERROR,
+                                         "could not spill result to disk: " + ex.getMessage(), null);
+          break;
+        }
+        if(maxResultSize > 0 && !singleRowMode && result.getByteSize() > maxResultSize) {
+          // fail instead of exhausting the heap, the remaining rows
+          // are skipped
+          discardResult(result);
+          result = makeResultTooLarge();
+        }
         break;
 
       case CopyInResponse:
@@ -1810,8 +2484,11 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
         aStatus = AsyncStatus.CopyOut;
         break;
 
-        // todo: support copy both response (low priority since it's
-        // only used in sreaming data between servers)
+      case CopyBothResponse:
+        // START_REPLICATION on a replication connection
+        getCopyStart((CopyResponse)msg, ResultStatus.PGRES_COPY_BOTH);
+        aStatus = AsyncStatus.CopyBoth;
+        break;
 
       case CopyData:
         // just ignore it, the user must have exited the copy mode too
@@ -1887,9 +2564,8 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
       break;
 
     case NoticeResponse:
-      ResultSet result = makeEmptyResult(ResultStatus.PGRES_NONFATAL_ERROR);
-      result.setErrorResponse((ErrorResponse) msg);
-      receiver.receive(result);
+      // don't call the receiver in the middle of parsing a result
+      notices.offer((ErrorResponse) msg);
       break;
 
     default:
@@ -1897,6 +2573,25 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
     }
   }
 
+  /**
+   * Hand the queued notices to the receiver
+   */
+  private void deliverNotices() {
+    ErrorResponse notice;
+    while((notice = notices.poll()) != null) {
+      ResultSet result = makeEmptyResult(ResultStatus.PGRES_NONFATAL_ERROR);
+      result.setErrorResponse(notice);
+      receiver.receive(result);
+    }
+  }
+
+  /**
+   * Return the notice counters of the connection
+   */
+  public NoticeQueue getNoticeQueue() {
+    return notices;
+  }
+
   /**
    * Create a new result with the proper row description from the
    * given CopyResponse and the status set to the given status
@@ -1948,17 +2643,229 @@ public class PostgresqlConnection implements ProtocolReader, ProtocolWriter {
    * @throws IOException
    */
   private void connect() throws IOException {
+    hosts = Utils.hostProperties(connectionProps);
+
+    String loadBalanceHosts = Utils.loadBalanceHosts(connectionProps);
+    if(loadBalanceHosts.equals("random")) {
+      Collections.shuffle(hosts);
+    } else if(!loadBalanceHosts.equals("disable")) {
+      throw new IOException("invalid load_balance_hosts value: \"" + loadBalanceHosts + "\"");
+    }
+
+    String targetSessionAttrs = Utils.targetSessionAttrs(connectionProps);
+    if(!TARGET_SESSION_ATTRS.contains(targetSessionAttrs)) {
+      throw new IOException("invalid target_session_attrs value: \"" + targetSessionAttrs + "\"");
+    }
+
+    try {
+      maxBufferSize = Utils.maxBufferSize(connectionProps);
+      maxResultSize = Utils.maxResultSize(connectionProps);
+      spillThreshold = Utils.spillThreshold(connectionProps);
+      parallelDecodeThreshold = Utils.parallelDecodeThreshold(connectionProps);
+    } catch(NumberFormatException ex) {
+      throw new IOException("invalid max_buffer_size, max_result_size, spill_threshold " +
+                            "or parallel_decode_threshold value");
+    }
+    spillDirectory = Utils.spillDirectory(connectionProps);
+    try {
+      notices = new NoticeQueue(Utils.noticeQueueSize(connectionProps), Utils.noticeRateLimit(connectionProps));
+    } catch(IllegalArgumentException ex) {
+      // includes NumberFormatException
+      throw new IOException("invalid notice_queue_size or notice_rate_limit value");
+    }
+    try {
+      dictionaryEncoding = Utils.dictionaryEncoding(connectionProps);
+      readAheadEnabled = Utils.readAhead(connectionProps);
+      // checked here so an invalid value fails before connecting
+      Utils.replication(connectionProps);
+    } catch(IllegalArgumentException ex) {
+      throw new IOException(ex.getMessage());
+    }
+
+    hostIndex = 0;
+    try {
+      connectHost();
+    } catch(IOException ex) {
+      errorMessage = ex.getLocalizedMessage();
+      if(!nextHost()) {
+        throw new IOException(errorMessage);
+      }
+    }
+  }
+
+  /**
+   * Give up on the current host and start connecting to the next
+   * one, the errors of all the hosts are reported if none of them
+   * worked
+   *
+   * @return false if there are no more hosts to try
+   */
+  private boolean nextHost() {
+    if(hosts == null) {
+      return false;
+    }
+
+    for(;;) {
+      hostErrors.append("connection to server at \"").append(Utils.host(props))
+        .append("\", port ").append(props.getProperty("port")).append(" failed: ")
+        .append(getErrorMessage()).append('\n');
+      closeSocket();
+
+      hostIndex++;
+      if(hostIndex == hosts.size()) {
+        if(preferStandbyFallback || !Utils.targetSessionAttrs(connectionProps).equals("prefer-standby")) {
+          if(hosts.size() > 1) {
+            errorMessage = hostErrors.toString().trim();
+          }
+          cStatus = ConnectionStatus.CONNECTION_BAD;
+          return false;
+        }
+        // no standby found, accept any server
+        preferStandbyFallback = true;
+        hostIndex = 0;
+      }
+
+      try {
+        connectHost();
+        return true;
+      } catch(IOException ex) {
+        errorMessage = ex.getLocalizedMessage();
+      }
+    }
+  }
+
+  /**
+   * Return an error message if the server doesn't match the
+   * target_session_attrs, null otherwise. Relies on the
+   * in_hot_standby and default_transaction_read_only parameters
+   * reported by PostgreSQL 14+
+   */
+  private String checkTargetSessionAttrs() {
+    String attrs = Utils.targetSessionAttrs(connectionProps);
+    if(attrs.equals("prefer-standby")) {
+      attrs = preferStandbyFallback ? "any" : "standby";
+    }
+    if(forCancel || attrs.equals("any")) {
+      return null;
+    }
+
+    String hotStandby = parameters.get("in_hot_standby");
+    if(hotStandby == null) {
+      return "server doesn't report in_hot_standby, target_session_attrs requires PostgreSQL 14 or newer";
+    }
+    boolean standby = hotStandby.equals("on");
+    boolean readOnly = standby || "on".equals(parameters.get("default_transaction_read_only"));
+
+    if(attrs.equals("read-write") && readOnly) {
+      return "session is read-only";
+    } else if(attrs.equals("read-only") && !readOnly) {
+      return "session is not read-only";
+    } else if(attrs.equals("primary") && standby) {
+      return "server is in hot standby mode";
+    } else if(attrs.equals("standby") && !standby) {
+      return "server is not in hot standby mode";
+    }
+    return null;
+  }
+
+  private void closeSocket() {
+    if(socket == null) {
+      return;
+    }
+    try {
+      // no need for a clean ssl shutdown, we're giving up on this host
+      socket.close();
+    } catch(IOException ex) {
+      // ignore
+    }
+  }
+
+  /**
+   * Start connecting to the current host, resetting the state left
+   * by the previous host if any
+   */
+  private void connectHost() throws IOException {
+    props = hosts.get(hostIndex);
+    socket = null;
+    channel = null;
+    readAhead = null;
+    trySSL = false;
+    directSSL = false;
+    bkd = null;
+    scram = null;
+    parameters.clear();
+    inBuffer.clear();
+    outBuffer.clear();
+    lengthPosition = firstPosition = -1;
+    cStatus = ConnectionStatus.CONNECTION_NEEDED;
+
+    long timeout;
+    try {
+      timeout = Utils.connectTimeout(props);
+    } catch(NumberFormatException ex) {
+      throw new IOException("invalid connect_timeout value");
+    }
+    hostDeadline = timeout == 0 ? 0 : System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+
     // if this connection was not created to cancel another request
     // and SSL wasn't explicitly disabled, then try to establish a
-    // secure connection
-    if(!forCancel && !Utils.ssl(props).equals("disable")) {
+    // secure connection. Like libpq, ssl is never used on unix
+    // domain sockets
+    boolean unixSocket = Utils.isUnixSocket(props);
+    if(!forCancel && !unixSocket && !Utils.ssl(props).equals("disable")) {
       trySSL = true;
     }
 
-    socket = SocketChannel.open();
+    String sslnegotiation = Utils.sslNegotiation(props);
+    if(sslnegotiation.equals("direct") && !unixSocket) {
+      // there is no way to fall back to a plain connection once the
+      // handshake started, so ssl has to be required
+      String sslmode = Utils.ssl(props);
+      if(!sslmode.equals("require") && !sslmode.equals("required") && !verifySSL()) {
+        throw new IOException("weak sslmode \"" + sslmode + "\" may not be used with sslnegotiation=direct " +
+                              "(use \"require\", \"verify-ca\", or \"verify-full\")");
+      }
+      directSSL = !forCancel;
+    } else if(!sslnegotiation.equals("postgres")) {
+      throw new IOException("invalid sslnegotiation value: \"" + sslnegotiation + "\"");
+    }
+
+    socket = unixSocket ? openUnixSocketChannel() : SocketChannel.open();
     socket.configureBlocking(false);
   }
 
+  /**
+   * Open a SocketChannel for the unix protocol family. Unix domain
+   * sockets are only supported by SocketChannel on Java 16+, use
+   * reflection so we still run on older JVMs
+   */
+  private static SocketChannel openUnixSocketChannel() throws IOException {
+    try {
+      ProtocolFamily unix = StandardProtocolFamily.valueOf("UNIX");
+      return (SocketChannel) SocketChannel.class.getMethod("open", ProtocolFamily.class).invoke(null, unix);
+    } catch(IllegalArgumentException ex) {
+      throw new IOException("unix domain sockets require Java 16 or newer");
+    } catch(NoSuchMethodException ex) {
+      throw new IOException("unix domain sockets require Java 16 or newer");
+    } catch(InvocationTargetException ex) {
+      if(ex.getCause() instanceof IOException) {
+        throw (IOException) ex.getCause();
+      }
+      throw new IOException(ex.getCause());
+    } catch(IllegalAccessException ex) {
+      throw new IOException(ex);
+    }
+  }
+
+  private static SocketAddress unixSocketAddress(String path) throws IOException {
+    try {
+      Class<?> addressClass = Class.forName("java.net.UnixDomainSocketAddress");
+      return (SocketAddress) addressClass.getMethod("of", String.class).invoke(null, path);
+    } catch(Exception ex) {
+      throw new IOException("invalid unix domain socket path " + path, ex);
+    }
+  }
+
   /**
    * MD5 encrypt the given password using the username as the salt
    */
@@ -1,17 +1,19 @@
 package org.jruby.pg.internal;
 
 import java.nio.charset.Charset;
+import java.util.Arrays;
 
 public class PostgresqlString {
-  public static final PostgresqlString NULL_STRING = new PostgresqlString(new byte[0]) {
-    @Override
-    public byte[] getBytes() {
-      return new byte[0];
-    }
-  };
+  public static final PostgresqlString NULL_STRING = new PostgresqlString(new byte[0]);
+
+  /**
+   * The empty string, i.e. the name of the unnamed statement and portal
+   */
+  public static final PostgresqlString EMPTY = new PostgresqlString(new byte[0]);
 
   private final byte[] bytes;
   private final Charset charset;
+  private int hash;
 
   public PostgresqlString(byte[] bytes) {
     this.bytes = bytes;
@@ -28,12 +30,27 @@ public class PostgresqlString {
     this.charset = charset;
   }
 
+  /**
+   * Return the encoded string. The array is shared, not copied, and
+   * must not be modified
+   */
   public byte[] getBytes() {
-    byte[] bytes = new byte[this.bytes.length];
-    System.arraycopy(this.bytes, 0, bytes, 0, bytes.length);
     return bytes;
   }
 
+  @Override
+  public boolean equals(Object obj) {
+    return obj instanceof PostgresqlString && Arrays.equals(bytes, ((PostgresqlString) obj).bytes);
+  }
+
+  @Override
+  public int hashCode() {
+    if(hash == 0) {
+      hash = Arrays.hashCode(bytes);
+    }
+    return hash;
+  }
+
   public String toString() {
     if(charset == null) {
       return new String(bytes);
@@ -0,0 +1,247 @@
+package org.jruby.pg.internal;
+
+import java.nio.charset.Charset;
+import java.util.BitSet;
+import java.util.List;
+
+import org.jruby.pg.messages.Column;
+import org.jruby.pg.messages.DataRow;
+import org.jruby.pg.messages.Format;
+import org.jruby.pg.messages.Oid;
+
+/**
+ * The values of a numeric or boolean column decoded into a primitive
+ * array, a long[] for integer columns, a double[] for floating point
+ * columns and a boolean[] for boolean columns. The values are decoded
+ * from the row bytes in a single pass, either format is supported.
+ */
+public class PrimitiveColumn {
+  private static final Charset ASCII = Charset.forName("US-ASCII");
+
+  private final Object values;
+  private final BitSet nulls;
+
+  private PrimitiveColumn(Object values, BitSet nulls) {
+    this.values = values;
+    this.nulls = nulls;
+  }
+
+  /**
+   * Return the values, a long[], double[] or boolean[]. The value of
+   * a NULL is 0 or false
+   */
+  public Object getValues() {
+    return values;
+  }
+
+  /**
+   * Return the rows whose value is NULL
+   */
+  public BitSet getNulls() {
+    return nulls;
+  }
+
+  /**
+   * Decode the given column of the result
+   *
+   * @throws IllegalArgumentException if the type of the column isn't
+   *         supported or a value is malformed
+   */
+  public static PrimitiveColumn decode(ResultSet result, int column) {
+    Column description = result.getDescription().getColumns()[column];
+    boolean binary = Format.isBinary(description.getFormat());
+    int oid = description.getOid();
+    List<DataRow> rows = result.getRows();
+    int size = rows.size();
+    BitSet nulls = new BitSet(size);
+
+    // decode each distinct value of dictionary encoded columns once
+    ValueDictionary dictionary = result.getDictionary(column);
+
+    switch(oid) {
+    case Oid.INT2:
+    case Oid.INT4:
+    case Oid.INT8:
+    case Oid.OID: {
+      // oids are unsigned
+      long mask = oid == Oid.OID ? 0xffffffffL : -1L;
+      long[] values = new long[size];
+      long[] dictionaryValues = null;
+      if(dictionary != null) {
+        dictionaryValues = new long[dictionary.size()];
+        for(int code = 0; code < dictionaryValues.length; code++) {
+          dictionaryValues[code] = decodeLong(dictionary.getData(code), dictionary.getOffset(code),
+                                              dictionary.getLength(code), binary) & mask;
+        }
+      }
+      for(int i = 0; i < size; i++) {
+        if(dictionary != null) {
+          int code = dictionary.getCode(i);
+          if(code < 0) {
+            nulls.set(i);
+          } else {
+            values[i] = dictionaryValues[code];
+          }
+          continue;
+        }
+        DataRow row = rows.get(i);
+        if(row.isNull(column)) {
+          nulls.set(i);
+        } else {
+          values[i] = decodeLong(row.getData(), row.getOffset(column), row.getValueLength(column), binary) & mask;
+        }
+      }
+      return new PrimitiveColumn(values, nulls);
+    }
+
+    case Oid.FLOAT4:
+    case Oid.FLOAT8: {
+      double[] values = new double[size];
+      double[] dictionaryValues = null;
+      if(dictionary != null) {
+        dictionaryValues = new double[dictionary.size()];
+        for(int code = 0; code < dictionaryValues.length; code++) {
+          dictionaryValues[code] = decodeDouble(dictionary.getData(code), dictionary.getOffset(code),
+                                                dictionary.getLength(code), binary);
+        }
+      }
+      for(int i = 0; i < size; i++) {
+        if(dictionary != null) {
+          int code = dictionary.getCode(i);
+          if(code < 0) {
+            nulls.set(i);
+          } else {
+            values[i] = dictionaryValues[code];
+          }
+          continue;
+        }
+        DataRow row = rows.get(i);
+        if(row.isNull(column)) {
+          nulls.set(i);
+        } else {
+          values[i] = decodeDouble(row.getData(), row.getOffset(column), row.getValueLength(column), binary);
+        }
+      }
+      return new PrimitiveColumn(values, nulls);
+    }
+
+    case Oid.BOOL: {
+      boolean[] values = new boolean[size];
+      for(int i = 0; i < size; i++) {
+        if(dictionary != null) {
+          int code = dictionary.getCode(i);
+          if(code < 0) {
+            nulls.set(i);
+          } else {
+            values[i] = decodeBoolean(dictionary.getData(code), dictionary.getOffset(code),
+                                      dictionary.getLength(code), binary);
+          }
+          continue;
+        }
+        DataRow row = rows.get(i);
+        if(row.isNull(column)) {
+          nulls.set(i);
+        } else {
+          values[i] = decodeBoolean(row.getData(), row.getOffset(column), row.getValueLength(column), binary);
+        }
+      }
+      return new PrimitiveColumn(values, nulls);
+    }
+
+    default:
+      throw new IllegalArgumentException("column " + column + " has type oid " + oid +
+                                         " which cannot be converted to a primitive array");
+    }
+  }
+
+  /**
+   * Decode a single value of a numeric or boolean type, return a Long,
+   * Double or Boolean or null if values of the type aren't decoded
+   *
+   * @throws IllegalArgumentException if the value is malformed
+   */
+  public static Object decodeValue(int oid, byte[] data, int offset, int length, boolean binary) {
+    switch(oid) {
+    case Oid.INT2:
+    case Oid.INT4:
+    case Oid.INT8:
+      return decodeLong(data, offset, length, binary);
+    case Oid.OID:
+      return decodeLong(data, offset, length, binary) & 0xffffffffL;
+    case Oid.FLOAT4:
+    case Oid.FLOAT8:
+      return decodeDouble(data, offset, length, binary);
+    case Oid.BOOL:
+      return decodeBoolean(data, offset, length, binary);
+    default:
+      return null;
+    }
+  }
+
+  static long decodeLong(byte[] data, int offset, int length, boolean binary) {
+    if(binary) {
+      if(length != 2 && length != 4 && length != 8) {
+        throw new IllegalArgumentException("invalid binary integer of length " + length);
+      }
+      // sign extend the first byte, the rest are unsigned
+      long value = data[offset];
+      for(int i = 1; i < length; i++) {
+        value = value << 8 | (data[offset + i] & 0xff);
+      }
+      return value;
+    }
+
+    int i = offset;
+    int end = offset + length;
+    boolean negative = i < end && data[i] == '-';
+    if(negative) {
+      i++;
+    }
+    if(i == end) {
+      throw new IllegalArgumentException("invalid integer \"" + new String(data, offset, length, ASCII) + "\"");
+    }
+    // accumulate negatively so Long.MIN_VALUE doesn't overflow
+    long value = 0;
+    for(; i < end; i++) {
+      int digit = data[i] - '0';
+      if(digit < 0 || digit > 9) {
+        throw new IllegalArgumentException("invalid integer \"" + new String(data, offset, length, ASCII) + "\"");
+      }
+      if(value < (Long.MIN_VALUE + digit) / 10) {
+        throw new IllegalArgumentException("integer out of range \"" + new String(data, offset, length, ASCII) + "\"");
+      }
+      value = value * 10 - digit;
+    }
+    if(!negative && value == Long.MIN_VALUE) {
+      throw new IllegalArgumentException("integer out of range \"" + new String(data, offset, length, ASCII) + "\"");
+    }
+    return negative ? value : -value;
+  }
+
+  static double decodeDouble(byte[] data, int offset, int length, boolean binary) {
+    if(binary) {
+      if(length == 4) {
+        return Float.intBitsToFloat((int) decodeLong(data, offset, length, true));
+      } else if(length == 8) {
+        return Double.longBitsToDouble(decodeLong(data, offset, length, true));
+      }
+      throw new IllegalArgumentException("invalid binary float of length " + length);
+    }
+
+    // Double.parseDouble() accepts the NaN and Infinity spelled by
+    // the server too
+    String value = new String(data, offset, length, ASCII);
+    try {
+      return Double.parseDouble(value);
+    } catch(NumberFormatException ex) {
+      throw new IllegalArgumentException("invalid float \"" + value + "\"");
+    }
+  }
+
+  static boolean decodeBoolean(byte[] data, int offset, int length, boolean binary) {
+    if(length != 1) {
+      throw new IllegalArgumentException("invalid boolean of length " + length);
+    }
+    return binary ? data[offset] != 0 : data[offset] == 't';
+  }
+}
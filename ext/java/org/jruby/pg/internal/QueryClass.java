@@ -9,4 +9,5 @@ public enum QueryClass {
   Extended,
   Prepare,
   Describe,
+  FunctionCall,
 }
@@ -1,5 +1,7 @@
 package org.jruby.pg.internal;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -39,9 +41,23 @@ public class ResultSet {
   private ResultStatus status;
   private RowDescription descrption;
   private ParameterDescription parameterDescription;
-  private final List<DataRow> rows = new ArrayList<DataRow>();
+  private List<DataRow> rows = new ArrayList<DataRow>();
+  // the rows are moved to a temporary file once they are bigger than
+  // spillThreshold bytes, 0 means never
+  private long spillThreshold;
+  private File spillDirectory;
+  private SpilledRowList spilledRows;
+  // the dictionaries of the text columns when dictionary encoding is
+  // on, null for the columns that aren't encoded
+  private ValueDictionary[] dictionaries;
+  // Result#values builds the rows in parallel once there are this
+  // many rows, 0 means never
+  private int parallelDecodeThreshold;
   private String errorMsg;
   private ErrorResponse error;
+  private byte[] functionResult;
+  // the size of the rows on the wire, used to enforce max_result_size
+  private long byteSize;
 
   public static ResultSet createWithStatus(ResultStatus status) {
     return new ResultSet().setStatus(status);
@@ -76,6 +92,9 @@ public class ResultSet {
    *         in this ResultSet
    */
   public String getError() {
+    if(errorMsg == null && error != null) {
+      errorMsg = error.getErrorMessage();
+    }
     return errorMsg;
   }
 
@@ -89,7 +108,7 @@ public class ResultSet {
     if(error == null) {
       return null;
     }
-    return error.getFields().get(fieldCode);
+    return error.getErrorField(fieldCode);
   }
 
   /**
@@ -115,6 +134,15 @@ public class ResultSet {
     return cmdStatus;
   }
 
+  /**
+   * Return the value returned by a fastpath function call, null if
+   * the function returned NULL or this isn't the result of a function
+   * call
+   */
+  public byte[] getFunctionResult() {
+    return functionResult;
+  }
+
   public ResultSet copy() {
     ResultSet res = new ResultSet().setStatus(ResultStatus.PGRES_TUPLES_OK);
     res.binaryTuples = binaryTuples;
@@ -137,10 +165,11 @@ public class ResultSet {
   }
 
   ResultSet appendErrorMessage(String msg) {
-    if(errorMsg == null) {
+    String current = getError();
+    if(current == null) {
       errorMsg = msg;
     } else {
-      errorMsg += msg;
+      errorMsg = current + msg;
     }
     return this;
   }
@@ -155,13 +184,126 @@ public class ResultSet {
     return this;
   }
 
-  ResultSet appendRow(DataRow row) {
+  ResultSet setSpillThreshold(long spillThreshold, File spillDirectory) {
+    this.spillThreshold = spillThreshold;
+    this.spillDirectory = spillDirectory;
+    return this;
+  }
+
+  /**
+   * Dictionary encode the text columns of the rows appended from now
+   * on, a column stops being encoded if it has too many distinct
+   * values
+   */
+  ResultSet setDictionaryEncoding(boolean dictionaryEncoding) {
+    dictionaries = null;
+    if(dictionaryEncoding && descrption != null) {
+      Column[] columns = descrption.getColumns();
+      dictionaries = new ValueDictionary[columns.length];
+      for(int i = 0; i < columns.length; i++) {
+        if(!Format.isBinary(columns[i].getFormat())) {
+          dictionaries[i] = new ValueDictionary();
+        }
+      }
+    }
+    return this;
+  }
+
+  ResultSet setParallelDecodeThreshold(int parallelDecodeThreshold) {
+    this.parallelDecodeThreshold = parallelDecodeThreshold;
+    return this;
+  }
+
+  /**
+   * Return the number of rows above which the values should be
+   * decoded in parallel, 0 means never
+   */
+  public int getParallelDecodeThreshold() {
+    return parallelDecodeThreshold;
+  }
+
+  /**
+   * Return the dictionary of the given column, null if the column
+   * isn't dictionary encoded
+   */
+  public ValueDictionary getDictionary(int column) {
+    return dictionaries == null ? null : dictionaries[column];
+  }
+
+  ResultSet appendRow(DataRow row) throws IOException {
+    byteSize += row.getLength();
+    if(dictionaries != null) {
+      for(int i = 0; i < dictionaries.length; i++) {
+        if(dictionaries[i] != null && !dictionaries[i].add(row, i)) {
+          // too many distinct values
+          dictionaries[i] = null;
+        }
+      }
+    }
+    if(spilledRows != null) {
+      spilledRows.append(row);
+      return this;
+    }
+
     rows.add(row);
+    if(spillThreshold > 0 && byteSize > spillThreshold) {
+      // too big for the heap, move the rows to a file
+      SpilledRowList spilled = new SpilledRowList(spillDirectory);
+      try {
+        for(DataRow dataRow : rows) {
+          spilled.append(dataRow);
+        }
+      } catch(IOException ex) {
+        spilled.close();
+        throw ex;
+      }
+      spilledRows = spilled;
+      rows = spilled;
+    }
     return this;
   }
 
+  /**
+   * Return true if the rows are stored in a temporary file
+   */
+  public boolean isSpilled() {
+    return spilledRows != null;
+  }
+
+  /**
+   * Return the number of temporary files of spilled results that are
+   * still open, they are closed when the result is cleared or garbage
+   * collected
+   */
+  public static int getOpenSpillFiles() {
+    return SpilledRowList.openCount();
+  }
+
+  /**
+   * Drop the rows and delete the temporary file if the rows were
+   * spilled to disk
+   */
+  public void clear() throws IOException {
+    rows = Collections.emptyList();
+    dictionaries = null;
+    if(spilledRows != null) {
+      SpilledRowList spilled = spilledRows;
+      spilledRows = null;
+      spilled.close();
+    }
+  }
+
+  /**
+   * Return the size in bytes of the rows as they were received from
+   * the server
+   */
+  public long getByteSize() {
+    return byteSize;
+  }
+
   ResultSet setErrorResponse(ErrorResponse error) {
-    this.errorMsg = error.getErrorMessage();
+    // the message is built by getError()
+    this.errorMsg = null;
     this.error = error;
     return this;
   }
@@ -171,6 +313,11 @@ public class ResultSet {
     return this;
   }
 
+  ResultSet setFunctionResult(byte[] functionResult) {
+    this.functionResult = functionResult;
+    return this;
+  }
+
   ResultSet setParameterDescription(ParameterDescription parameterDescription) {
     this.parameterDescription = parameterDescription;
     return this;
@@ -0,0 +1,308 @@
+package org.jruby.pg.internal;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Client side of the SCRAM-SHA-256 SASL exchange (RFC 5802 and RFC
+ * 7677) without channel binding.
+ *
+ * Deriving the salted password takes thousands of HMAC iterations,
+ * the derived ClientKey and ServerKey are cached process wide so
+ * reconnecting with the same credentials skips the derivation
+ * entirely.
+ */
+public class ScramSha256 {
+  public static final String MECHANISM = "SCRAM-SHA-256";
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final String GS2_HEADER = "n,,";
+  private static final int NONCE_LENGTH = 18;
+  private static final int CACHE_SIZE = 256;
+
+  private static final SecureRandom random = new SecureRandom();
+
+  // derived keys by (user, salt, iterations, password digest), the
+  // least recently used entry is evicted when the cache is full
+  private static final Map<CacheKey, Keys> keyCache =
+    new LinkedHashMap<CacheKey, Keys>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<CacheKey, Keys> eldest) {
+        return size() > CACHE_SIZE;
+      }
+    };
+
+  private final String user;
+  private final String password;
+  private final String clientNonce;
+  private final String clientFirstMessageBare;
+  private byte[] expectedServerSignature;
+
+  public ScramSha256(String user, String password) {
+    // the server ignores the user name in the message and uses the
+    // one from the startup message instead
+    this(user, password, generateNonce(), "");
+  }
+
+  /**
+   * Start an exchange with the given nonce and the given user name in
+   * the client-first-message, used to check the exchange against
+   * known test vectors
+   */
+  public ScramSha256(String user, String password, String clientNonce, String saslName) {
+    this.user = user == null ? "" : user;
+    this.password = password;
+    this.clientNonce = clientNonce;
+    this.clientFirstMessageBare = "n=" + saslName + ",r=" + clientNonce;
+  }
+
+  /**
+   * Return the data of the SASLInitialResponse message
+   */
+  public byte[] clientFirstMessage() {
+    return (GS2_HEADER + clientFirstMessageBare).getBytes(UTF8);
+  }
+
+  /**
+   * Process the server-first-message and return the
+   * client-final-message
+   */
+  public byte[] clientFinalMessage(byte[] serverFirstMessage) throws IOException {
+    String serverFirst = new String(serverFirstMessage, UTF8);
+    String nonce = null, salt = null, iterations = null;
+    for(String attribute : serverFirst.split(",")) {
+      if(attribute.startsWith("r=")) {
+        nonce = attribute.substring(2);
+      } else if(attribute.startsWith("s=")) {
+        salt = attribute.substring(2);
+      } else if(attribute.startsWith("i=")) {
+        iterations = attribute.substring(2);
+      }
+    }
+
+    if(nonce == null || salt == null || iterations == null) {
+      throw new IOException("malformed SCRAM message (attribute missing)");
+    }
+    if(!nonce.startsWith(clientNonce) || nonce.length() == clientNonce.length()) {
+      throw new IOException("invalid SCRAM response (nonce mismatch)");
+    }
+
+    int iterationCount;
+    try {
+      iterationCount = Integer.parseInt(iterations);
+    } catch(NumberFormatException ex) {
+      throw new IOException("malformed SCRAM message (invalid iteration count)");
+    }
+    if(iterationCount < 1) {
+      throw new IOException("malformed SCRAM message (invalid iteration count)");
+    }
+
+    Keys keys = keys(base64Decode(salt), iterationCount);
+
+    String clientFinalWithoutProof = "c=" + base64Encode(GS2_HEADER.getBytes(UTF8)) + ",r=" + nonce;
+    byte[] authMessage = (clientFirstMessageBare + "," + serverFirst + "," + clientFinalWithoutProof).getBytes(UTF8);
+
+    byte[] clientSignature = hmac(keys.storedKey, authMessage);
+    byte[] proof = new byte[clientSignature.length];
+    for(int i = 0; i < proof.length; i++) {
+      proof[i] = (byte)(keys.clientKey[i] ^ clientSignature[i]);
+    }
+    expectedServerSignature = hmac(keys.serverKey, authMessage);
+
+    return (clientFinalWithoutProof + ",p=" + base64Encode(proof)).getBytes(UTF8);
+  }
+
+  /**
+   * Verify the server-final-message, i.e. make sure the server knows
+   * the password too
+   */
+  public void verifyServerFinal(byte[] serverFinalMessage) throws IOException {
+    String serverFinal = new String(serverFinalMessage, UTF8);
+    if(serverFinal.startsWith("e=")) {
+      throw new IOException("SCRAM authentication failed: " + serverFinal.substring(2));
+    }
+    if(!serverFinal.startsWith("v=") || expectedServerSignature == null) {
+      throw new IOException("malformed SCRAM message (server signature missing)");
+    }
+
+    int end = serverFinal.indexOf(',');
+    String signature = end < 0 ? serverFinal.substring(2) : serverFinal.substring(2, end);
+    if(!MessageDigest.isEqual(expectedServerSignature, base64Decode(signature))) {
+      throw new IOException("incorrect server signature");
+    }
+  }
+
+  private Keys keys(byte[] salt, int iterations) throws IOException {
+    // the digest of the password is part of the key, otherwise a
+    // connection with the wrong password would reuse the keys derived
+    // from the right one and successfully authenticate
+    CacheKey cacheKey = new CacheKey(user, salt, iterations, sha256(password.getBytes(UTF8)));
+    synchronized(keyCache) {
+      Keys keys = keyCache.get(cacheKey);
+      if(keys != null) {
+        return keys;
+      }
+    }
+
+    // derive the keys outside the lock, two threads may end up doing
+    // the same work but neither blocks the other
+    byte[] saltedPassword = pbkdf2(password.getBytes(UTF8), salt, iterations);
+    byte[] clientKey = hmac(saltedPassword, "Client Key".getBytes(UTF8));
+    Keys keys = new Keys(clientKey, sha256(clientKey), hmac(saltedPassword, "Server Key".getBytes(UTF8)));
+    synchronized(keyCache) {
+      keyCache.put(cacheKey, keys);
+    }
+    return keys;
+  }
+
+  /**
+   * PBKDF2 with HMAC-SHA-256 and a single output block (RFC 2898),
+   * i.e. the Hi() function of RFC 5802
+   */
+  static byte[] pbkdf2(byte[] password, byte[] salt, int iterations) throws IOException {
+    try {
+      Mac mac = Mac.getInstance("HmacSHA256");
+      mac.init(new SecretKeySpec(password, "HmacSHA256"));
+      mac.update(salt);
+      byte[] u = mac.doFinal(new byte[] {0, 0, 0, 1});
+      byte[] result = u.clone();
+      for(int i = 1; i < iterations; i++) {
+        u = mac.doFinal(u);
+        for(int j = 0; j < result.length; j++) {
+          result[j] ^= u[j];
+        }
+      }
+      return result;
+    } catch(GeneralSecurityException ex) {
+      throw new IOException(ex);
+    }
+  }
+
+  private static byte[] hmac(byte[] key, byte[] data) throws IOException {
+    try {
+      Mac mac = Mac.getInstance("HmacSHA256");
+      mac.init(new SecretKeySpec(key, "HmacSHA256"));
+      return mac.doFinal(data);
+    } catch(GeneralSecurityException ex) {
+      throw new IOException(ex);
+    }
+  }
+
+  private static byte[] sha256(byte[] data) throws IOException {
+    try {
+      return MessageDigest.getInstance("SHA-256").digest(data);
+    } catch(GeneralSecurityException ex) {
+      throw new IOException(ex);
+    }
+  }
+
+  private static String generateNonce() {
+    byte[] bytes = new byte[NONCE_LENGTH];
+    random.nextBytes(bytes);
+    return base64Encode(bytes);
+  }
+
+  private static final char[] BASE64 =
+    "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+  static String base64Encode(byte[] bytes) {
+    StringBuilder builder = new StringBuilder((bytes.length + 2) / 3 * 4);
+    for(int i = 0; i < bytes.length; i += 3) {
+      int b = (bytes[i] & 0xff) << 16;
+      if(i + 1 < bytes.length) {
+        b |= (bytes[i + 1] & 0xff) << 8;
+      }
+      if(i + 2 < bytes.length) {
+        b |= bytes[i + 2] & 0xff;
+      }
+      builder.append(BASE64[b >>> 18 & 0x3f]);
+      builder.append(BASE64[b >>> 12 & 0x3f]);
+      builder.append(i + 1 < bytes.length ? BASE64[b >>> 6 & 0x3f] : '=');
+      builder.append(i + 2 < bytes.length ? BASE64[b & 0x3f] : '=');
+    }
+    return builder.toString();
+  }
+
+  static byte[] base64Decode(String string) throws IOException {
+    int length = string.length();
+    while(length > 0 && string.charAt(length - 1) == '=') {
+      length--;
+    }
+
+    byte[] bytes = new byte[length * 3 / 4];
+    int buffer = 0, bits = 0, position = 0;
+    for(int i = 0; i < length; i++) {
+      char c = string.charAt(i);
+      int value;
+      if(c >= 'A' && c <= 'Z') {
+        value = c - 'A';
+      } else if(c >= 'a' && c <= 'z') {
+        value = c - 'a' + 26;
+      } else if(c >= '0' && c <= '9') {
+        value = c - '0' + 52;
+      } else if(c == '+') {
+        value = 62;
+      } else if(c == '/') {
+        value = 63;
+      } else {
+        throw new IOException("malformed SCRAM message (invalid base64)");
+      }
+      buffer = buffer << 6 | value;
+      bits += 6;
+      if(bits >= 8) {
+        bits -= 8;
+        bytes[position++] = (byte)(buffer >>> bits);
+      }
+    }
+    return bytes;
+  }
+
+  private static class Keys {
+    final byte[] clientKey, storedKey, serverKey;
+
+    Keys(byte[] clientKey, byte[] storedKey, byte[] serverKey) {
+      this.clientKey = clientKey;
+      this.storedKey = storedKey;
+      this.serverKey = serverKey;
+    }
+  }
+
+  private static class CacheKey {
+    private final String user;
+    private final byte[] salt;
+    private final int iterations;
+    private final byte[] passwordDigest;
+
+    CacheKey(String user, byte[] salt, int iterations, byte[] passwordDigest) {
+      this.user = user;
+      this.salt = salt;
+      this.iterations = iterations;
+      this.passwordDigest = passwordDigest;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if(!(obj instanceof CacheKey)) {
+        return false;
+      }
+      CacheKey other = (CacheKey) obj;
+      return iterations == other.iterations && user.equals(other.user) &&
+             Arrays.equals(salt, other.salt) &&
+             MessageDigest.isEqual(passwordDigest, other.passwordDigest);
+    }
+
+    @Override
+    public int hashCode() {
+      return (user.hashCode() * 31 + Arrays.hashCode(salt)) * 31 + iterations;
+    }
+  }
+}
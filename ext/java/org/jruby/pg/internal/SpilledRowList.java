@@ -0,0 +1,274 @@
+package org.jruby.pg.internal;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.jruby.pg.messages.DataRow;
+
+/**
+ * A list of rows kept in a temporary file instead of the heap. Rows
+ * are appended to the file in the DataRow wire format and read back
+ * through read-only memory mapped segments, so only the rows that are
+ * being accessed are materialized on the heap.
+ *
+ * A row never crosses a segment boundary, a segment is mapped the
+ * first time one of its rows is accessed.
+ *
+ * The file is deleted as soon as it is opened where the platform
+ * allows it, only the open channel keeps it alive. The channel is
+ * closed, and the file deleted if it's still there, by {@link
+ * #close()} or by a reaper thread once the list is unreachable, e.g.
+ * when a Result that wasn't cleared is garbage collected.
+ */
+class SpilledRowList extends AbstractList<DataRow> implements Closeable {
+  private static final long SEGMENT_SIZE = 256L * 1024 * 1024;
+  private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+  private static final ReferenceQueue<SpilledRowList> unreachable =
+    new ReferenceQueue<SpilledRowList>();
+  // keeps the references of the open lists reachable until they are
+  // enqueued
+  private static final Set<Resources> open =
+    Collections.synchronizedSet(new HashSet<Resources>());
+
+  static {
+    Thread reaper = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        for(;;) {
+          try {
+            ((Resources) unreachable.remove()).release();
+          } catch(InterruptedException ex) {
+            // keep reaping, the thread dies with the JVM
+          } catch(IOException ex) {
+            // ignore, nobody is left to report it to
+          }
+        }
+      }
+    }, "pg-spill-reaper");
+    reaper.setDaemon(true);
+    reaper.start();
+  }
+
+  private final File file;
+  private final FileChannel channel;
+  private final Resources resources;
+  private final ByteBuffer writeBuffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+  // the offset of each row in the file
+  private long[] offsets = new long[1024];
+  private int count;
+  // the number of bytes written, including the buffered ones
+  private long fileSize;
+  // the offset of each segment in the file and its mapping, null
+  // until the segment is accessed
+  private long[] segmentStarts = new long[] {0};
+  private MappedByteBuffer[] segments = new MappedByteBuffer[1];
+  private int segmentCount = 1;
+
+  /**
+   * Create a new list backed by a temporary file in the given
+   * directory, or the default temporary directory if null
+   */
+  SpilledRowList(File directory) throws IOException {
+    file = File.createTempFile("pg-result", ".spill", directory);
+    RandomAccessFile randomAccessFile = null;
+    try {
+      randomAccessFile = new RandomAccessFile(file, "rw");
+    } finally {
+      if(randomAccessFile == null) {
+        file.delete();
+      }
+    }
+    channel = randomAccessFile.getChannel();
+    // unlinking an open file works everywhere but on Windows, where
+    // the file is deleted once the channel is closed
+    boolean deleted = file.delete();
+    resources = new Resources(this, deleted ? null : file, channel);
+  }
+
+  /**
+   * Return the number of lists whose file is still open, i.e. that
+   * were neither closed nor reaped
+   */
+  static int openCount() {
+    return open.size();
+  }
+
+  @Override
+  public int size() {
+    return count;
+  }
+
+  @Override
+  public boolean add(DataRow row) {
+    try {
+      append(row);
+    } catch(IOException ex) {
+      throw new IllegalStateException("cannot write to " + file, ex);
+    }
+    return true;
+  }
+
+  /**
+   * Append the row to the file
+   */
+  void append(DataRow row) throws IOException {
+    byte[] data = row.getData();
+    long length = 2 + data.length;
+
+    long segmentStart = segmentStarts[segmentCount - 1];
+    if(fileSize > segmentStart && fileSize - segmentStart + length > SEGMENT_SIZE) {
+      // start a new segment, so the row can be read from a single
+      // mapping
+      if(segmentCount == segmentStarts.length) {
+        segmentStarts = Arrays.copyOf(segmentStarts, segmentCount * 2);
+        segments = Arrays.copyOf(segments, segmentCount * 2);
+      }
+      segmentStarts[segmentCount++] = fileSize;
+    }
+
+    if(count == offsets.length) {
+      offsets = Arrays.copyOf(offsets, count * 2);
+    }
+    offsets[count] = fileSize;
+
+    ensureRoom(2);
+    writeBuffer.putShort((short) row.getColumnCount());
+    for(int offset = 0; offset < data.length; ) {
+      ensureRoom(1);
+      int n = Math.min(writeBuffer.remaining(), data.length - offset);
+      writeBuffer.put(data, offset, n);
+      offset += n;
+    }
+
+    count++;
+    fileSize += length;
+    modCount++;
+  }
+
+  @Override
+  public DataRow get(int index) {
+    if(index < 0 || index >= count) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + count);
+    }
+
+    long offset = offsets[index];
+    long end = index + 1 < count ? offsets[index + 1] : fileSize;
+    try {
+      flush();
+      int segment = segmentOf(offset);
+      ByteBuffer buffer = map(segment, end).duplicate();
+      buffer.position((int)(offset - segmentStarts[segment]));
+
+      int columns = buffer.getShort();
+      byte[] data = new byte[(int)(end - offset) - 2];
+      buffer.get(data);
+      // the length on the wire includes the length field
+      return new DataRow(columns, data, data.length + 6);
+    } catch(IOException ex) {
+      throw new IllegalStateException("cannot read from " + file, ex);
+    }
+  }
+
+  /**
+   * Close and delete the file
+   */
+  @Override
+  public void close() throws IOException {
+    if(segments == null) {
+      return;
+    }
+    segments = null;
+    count = 0;
+    resources.release();
+  }
+
+  /**
+   * The channel and the file of a list, released by close() or once
+   * the list is unreachable
+   */
+  private static class Resources extends PhantomReference<SpilledRowList> {
+    // null if the file was deleted when it was opened
+    private File file;
+    private FileChannel channel;
+
+    Resources(SpilledRowList list, File file, FileChannel channel) {
+      super(list, unreachable);
+      this.file = file;
+      this.channel = channel;
+      open.add(this);
+    }
+
+    synchronized void release() throws IOException {
+      if(channel == null) {
+        return;
+      }
+      open.remove(this);
+      FileChannel channel = this.channel;
+      File file = this.file;
+      this.channel = null;
+      this.file = null;
+      try {
+        channel.close();
+      } finally {
+        // on some platforms a mapped file cannot be deleted until the
+        // mapping is garbage collected
+        if(file != null && !file.delete()) {
+          file.deleteOnExit();
+        }
+      }
+    }
+  }
+
+  private void ensureRoom(int n) throws IOException {
+    if(writeBuffer.remaining() < n) {
+      flush();
+    }
+  }
+
+  private void flush() throws IOException {
+    if(segments == null) {
+      throw new IOException("the result was cleared");
+    }
+    writeBuffer.flip();
+    while(writeBuffer.hasRemaining()) {
+      channel.write(writeBuffer);
+    }
+    writeBuffer.clear();
+  }
+
+  private int segmentOf(long offset) {
+    int segment = Arrays.binarySearch(segmentStarts, 0, segmentCount, offset);
+    // not an exact match, the offset is in the segment before the
+    // insertion point
+    return segment >= 0 ? segment : -segment - 2;
+  }
+
+  /**
+   * Return the mapping of the given segment, it covers at least the
+   * bytes up to end
+   */
+  private MappedByteBuffer map(int segment, long end) throws IOException {
+    long start = segmentStarts[segment];
+    MappedByteBuffer mapping = segments[segment];
+    if(mapping == null || start + mapping.capacity() < end) {
+      // the last segment grows as rows are added, map it again
+      long segmentEnd = segment + 1 < segmentCount ? segmentStarts[segment + 1] : fileSize;
+      mapping = channel.map(FileChannel.MapMode.READ_ONLY, start, segmentEnd - start);
+      segments[segment] = mapping;
+    }
+    return mapping;
+  }
+}
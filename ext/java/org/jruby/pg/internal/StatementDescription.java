@@ -0,0 +1,87 @@
+package org.jruby.pg.internal;
+
+import org.jruby.pg.messages.Column;
+import org.jruby.pg.messages.Format;
+import org.jruby.pg.messages.ParameterDescription;
+import org.jruby.pg.messages.RowDescription;
+
+/**
+ * The cached description of a prepared statement. The shape of the
+ * rows returned by a prepared statement cannot change (the server
+ * fails the execution instead), so once it's known there is no need
+ * to describe the statement again.
+ */
+class StatementDescription {
+  private ParameterDescription parameters;
+  private boolean rowsKnown;
+  // null if the statement doesn't return rows
+  private RowDescription rows;
+  // the rows with the format of each column set to text or binary
+  private RowDescription textRows;
+  private RowDescription binaryRows;
+
+  /**
+   * Return true if the shape of the rows is known
+   */
+  boolean isRowsKnown() {
+    return rowsKnown;
+  }
+
+  /**
+   * Return true if both the parameters and the rows are known
+   */
+  boolean isComplete() {
+    return rowsKnown && parameters != null;
+  }
+
+  ParameterDescription getParameters() {
+    return parameters;
+  }
+
+  void setParameters(ParameterDescription parameters) {
+    this.parameters = parameters;
+  }
+
+  /**
+   * Set the description of the rows, null if the statement doesn't
+   * return rows
+   */
+  void setRows(RowDescription rows) {
+    this.rows = rows;
+    this.rowsKnown = true;
+    this.textRows = null;
+    this.binaryRows = null;
+  }
+
+  /**
+   * Return the description of the rows returned in the given format,
+   * null if the statement doesn't return rows
+   */
+  RowDescription getRows(Format format) {
+    if(rows == null) {
+      return null;
+    }
+    if(format == Format.Binary) {
+      if(binaryRows == null) {
+        binaryRows = withFormat(rows, format);
+      }
+      return binaryRows;
+    }
+    if(textRows == null) {
+      textRows = withFormat(rows, format);
+    }
+    return textRows;
+  }
+
+  private static RowDescription withFormat(RowDescription rows, Format format) {
+    Column[] columns = rows.getColumns();
+    Column[] copy = new Column[columns.length];
+    for(int i = 0; i < columns.length; i++) {
+      Column column = columns[i];
+      copy[i] = new Column(column.getName(), column.getTableOid(), column.getTableIndex(),
+                           column.getOid(), column.getSize(), column.getTypmod(),
+                           format.getValue());
+    }
+    return new RowDescription(copy, 0);
+  }
+}
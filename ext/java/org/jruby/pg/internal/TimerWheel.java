@@ -0,0 +1,238 @@
+package org.jruby.pg.internal;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A hashed timer wheel. One thread advances the wheel every tick and
+ * hands expired tasks to a small executor, so any number of pending
+ * timeouts costs one thread and O(1) work per schedule/cancel.
+ *
+ * Timeouts are only as precise as the tick, which is fine for query
+ * deadlines that are typically tens or hundreds of milliseconds.
+ */
+public class TimerWheel {
+  private static final int PENDING = 0, CANCELLED = 1, EXPIRED = 2;
+
+  private final long tickNanos;
+  private final Bucket[] wheel;
+  private final int mask;
+  private final long startTime;
+
+  // timeouts are added here by the scheduling threads and moved to
+  // their bucket by the wheel thread on the next tick
+  private final ConcurrentLinkedQueue<Timeout> newTimeouts =
+    new ConcurrentLinkedQueue<Timeout>();
+
+  private final ExecutorService executor;
+  private final Thread thread;
+  private long tick;
+
+  /**
+   * Create a timer wheel, the number of buckets is rounded up to the
+   * next power of two
+   *
+   * @param tickMillis the duration of a tick
+   * @param buckets the number of buckets of the wheel
+   * @param workers the number of threads used to run expired tasks
+   */
+  public TimerWheel(String name, long tickMillis, int buckets, int workers) {
+    int size = 1;
+    while(size < buckets) {
+      size <<= 1;
+    }
+    wheel = new Bucket[size];
+    for(int i = 0; i < size; i++) {
+      wheel[i] = new Bucket();
+    }
+    mask = size - 1;
+    tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+
+    ThreadFactory factory = new DaemonThreadFactory(name);
+    executor = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS,
+                                      new LinkedBlockingQueue<Runnable>(), factory);
+    ((ThreadPoolExecutor) executor).allowCoreThreadTimeOut(true);
+
+    startTime = System.nanoTime();
+    thread = factory.newThread(new Runnable() {
+      public void run() {
+        runWheel();
+      }
+    });
+    thread.start();
+  }
+
+  /**
+   * Schedule the given task to run after delayMillis
+   */
+  public Timeout schedule(Runnable task, long delayMillis) {
+    long deadline = System.nanoTime() - startTime + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+    Timeout timeout = new Timeout(task, deadline);
+    newTimeouts.add(timeout);
+    return timeout;
+  }
+
+  private void runWheel() {
+    for(;;) {
+      long deadline = tickNanos * (tick + 1);
+      long sleep = deadline - (System.nanoTime() - startTime);
+      if(sleep > 0) {
+        try {
+          TimeUnit.NANOSECONDS.sleep(sleep);
+        } catch(InterruptedException ex) {
+          // the wheel thread is a daemon and runs until the JVM exits
+        }
+        continue;
+      }
+
+      transferNewTimeouts();
+      wheel[(int)(tick & mask)].expire(deadline);
+      tick++;
+    }
+  }
+
+  private void transferNewTimeouts() {
+    Timeout timeout;
+    while((timeout = newTimeouts.poll()) != null) {
+      if(timeout.state.get() != PENDING) {
+        continue;
+      }
+      long ticks = Math.max(timeout.deadline / tickNanos, tick);
+      timeout.remainingRounds = (ticks - tick) / wheel.length;
+      wheel[(int)(ticks & mask)].add(timeout);
+    }
+  }
+
+  /**
+   * A doubly linked list of timeouts, only accessed by the wheel
+   * thread
+   */
+  private class Bucket {
+    private Timeout head, tail;
+
+    void add(Timeout timeout) {
+      timeout.bucket = this;
+      if(head == null) {
+        head = tail = timeout;
+      } else {
+        tail.next = timeout;
+        timeout.prev = tail;
+        tail = timeout;
+      }
+    }
+
+    void expire(long deadline) {
+      Timeout timeout = head;
+      while(timeout != null) {
+        Timeout next = timeout.next;
+        if(timeout.state.get() == CANCELLED) {
+          remove(timeout);
+        } else if(timeout.remainingRounds <= 0 && timeout.deadline <= deadline) {
+          remove(timeout);
+          timeout.expire();
+        } else {
+          timeout.remainingRounds--;
+        }
+        timeout = next;
+      }
+    }
+
+    private void remove(Timeout timeout) {
+      if(timeout.prev != null) {
+        timeout.prev.next = timeout.next;
+      } else {
+        head = timeout.next;
+      }
+      if(timeout.next != null) {
+        timeout.next.prev = timeout.prev;
+      } else {
+        tail = timeout.prev;
+      }
+      timeout.prev = timeout.next = null;
+      timeout.bucket = null;
+    }
+  }
+
+  /**
+   * A handle to a scheduled task
+   */
+  public class Timeout {
+    private final Runnable task;
+    private final long deadline;
+    private final AtomicInteger state = new AtomicInteger(PENDING);
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    // only accessed by the wheel thread
+    private long remainingRounds;
+    private Timeout prev, next;
+    private Bucket bucket;
+
+    private Timeout(Runnable task, long deadline) {
+      this.task = task;
+      this.deadline = deadline;
+    }
+
+    /**
+     * Cancel the task
+     *
+     * @return true if the task was cancelled before it expired,
+     *         false if the task already expired
+     */
+    public boolean cancel() {
+      return state.compareAndSet(PENDING, CANCELLED);
+    }
+
+    /**
+     * Return true if the task expired and was handed over for
+     * execution
+     */
+    public boolean isExpired() {
+      return state.get() == EXPIRED;
+    }
+
+    /**
+     * Wait up to timeoutMillis for an expired task to finish running
+     *
+     * @return true if the task finished running
+     */
+    public boolean awaitCompletion(long timeoutMillis) throws InterruptedException {
+      return done.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void expire() {
+      if(!state.compareAndSet(PENDING, EXPIRED)) {
+        return;
+      }
+      executor.execute(new Runnable() {
+        public void run() {
+          try {
+            task.run();
+          } finally {
+            done.countDown();
+          }
+        }
+      });
+    }
+  }
+
+  private static class DaemonThreadFactory implements ThreadFactory {
+    private final String name;
+    private final AtomicInteger count = new AtomicInteger();
+
+    DaemonThreadFactory(String name) {
+      this.name = name;
+    }
+
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, name + "-" + count.getAndIncrement());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
@@ -1,5 +1,9 @@
 package org.jruby.pg.internal;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 
 public class Utils {
@@ -19,10 +23,43 @@ public class Utils {
     return prop.getProperty("options", "");
   }
 
+  /**
+   * The replication mode of the connection, "database" for logical
+   * replication, "true" for physical replication or null for a regular
+   * connection
+   */
+  public static String replication(Properties prop) {
+    String value = prop.getProperty("replication");
+    if(value == null) {
+      return null;
+    }
+    if(value.trim().equals("database")) {
+      return "database";
+    }
+    return booleanOption(prop, "replication", false) ? "true" : null;
+  }
+
   public static String ssl(Properties prop) {
     return getPropertyOrEnv(prop, "sslmode", "PGSSLMODE", "disable");
   }
 
+  /**
+   * How SSL is negotiated, either "postgres" (send an SSLRequest
+   * first) or "direct" (start the SSL handshake right away)
+   */
+  public static String sslNegotiation(Properties prop) {
+    return getPropertyOrEnv(prop, "sslnegotiation", "PGSSLNEGOTIATION", "postgres");
+  }
+
+
+  /**
+   * The timeout in milliseconds used when sending a CancelRequest on
+   * behalf of a query deadline, the property is in seconds
+   */
+  public static long cancelTimeout(Properties prop) {
+    String timeout = prop.getProperty("cancel_timeout", "10");
+    return (long)(Double.parseDouble(timeout) * 1000);
+  }
 
   public static int port(Properties prop) {
     String port = getPropertyOrEnv(prop, "port", "PGPORT", "5432");
@@ -37,6 +74,189 @@ public class Utils {
     return host;
   }
 
+  /**
+   * Split the comma separated host and port lists and return the
+   * properties to use for each host, in order. A single port applies
+   * to all the hosts.
+   */
+  public static List<Properties> hostProperties(Properties prop) throws IOException {
+    String[] hosts = host(prop).split(",", -1);
+    String[] ports = getPropertyOrEnv(prop, "port", "PGPORT", "5432").split(",", -1);
+    if(ports.length != 1 && ports.length != hosts.length) {
+      throw new IOException("could not match " + ports.length + " port numbers to " +
+                            hosts.length + " hosts");
+    }
+
+    List<Properties> list = new ArrayList<Properties>(hosts.length);
+    for(int i = 0; i < hosts.length; i++) {
+      String host = hosts[i].trim();
+      String port = ports[ports.length == 1 ? 0 : i].trim();
+      // the original properties are the defaults of the copy
+      Properties hostProp = new Properties(prop);
+      hostProp.setProperty("host", host.isEmpty() ? "localhost" : host);
+      hostProp.setProperty("port", port.isEmpty() ? "5432" : port);
+      list.add(hostProp);
+    }
+    return list;
+  }
+
+  /**
+   * Either "disable" (try the hosts in order) or "random"
+   */
+  public static String loadBalanceHosts(Properties prop) {
+    return getPropertyOrEnv(prop, "load_balance_hosts", "PGLOADBALANCEHOSTS", "disable");
+  }
+
+  /**
+   * The kind of server to connect to, one of "any", "read-write",
+   * "read-only", "primary", "standby" or "prefer-standby"
+   */
+  public static String targetSessionAttrs(Properties prop) {
+    return getPropertyOrEnv(prop, "target_session_attrs", "PGTARGETSESSIONATTRS", "any");
+  }
+
+  /**
+   * The time in milliseconds to wait for each host when connecting,
+   * 0 means wait forever. Like libpq the minimum is 2 seconds
+   */
+  public static long connectTimeout(Properties prop) {
+    long timeout = Long.parseLong(getPropertyOrEnv(prop, "connect_timeout", "PGCONNECT_TIMEOUT", "0").trim());
+    if(timeout <= 0) {
+      return 0;
+    }
+    return Math.max(timeout, 2) * 1000;
+  }
+
+  /**
+   * The maximum size in bytes of the input buffer, 0 means unlimited.
+   * Once the buffer is full the connection stops reading from the
+   * socket until the buffered messages are consumed
+   */
+  public static int maxBufferSize(Properties prop) {
+    return Integer.parseInt(prop.getProperty("max_buffer_size", "0").trim());
+  }
+
+  /**
+   * The maximum size in bytes of the rows of a single result, 0 means
+   * unlimited. Bigger results fail with a program_limit_exceeded
+   * error
+   */
+  public static long maxResultSize(Properties prop) {
+    return Long.parseLong(prop.getProperty("max_result_size", "0").trim());
+  }
+
+  /**
+   * The size in bytes above which the rows of a result are moved from
+   * the heap to a memory mapped temporary file, 0 means never
+   */
+  public static long spillThreshold(Properties prop) {
+    return Long.parseLong(prop.getProperty("spill_threshold", "0").trim());
+  }
+
+  /**
+   * The directory of the temporary files used to spill results, null
+   * means the default temporary directory
+   */
+  public static File spillDirectory(Properties prop) {
+    String directory = prop.getProperty("spill_directory");
+    return directory == null || directory.isEmpty() ? null : new File(directory);
+  }
+
+  /**
+   * Whether the text columns of the results are dictionary encoded,
+   * i.e. the repeated values of a column share the same string
+   */
+  public static boolean dictionaryEncoding(Properties prop) {
+    return booleanOption(prop, "dictionary_encoding", false);
+  }
+
+  /**
+   * The number of rows above which Result#values builds the rows in
+   * parallel, 0 means never
+   */
+  public static int parallelDecodeThreshold(Properties prop) {
+    return Integer.parseInt(prop.getProperty("parallel_decode_threshold", "0").trim());
+  }
+
+  public static final int DEFAULT_NOTICE_QUEUE_SIZE = 1000;
+
+  /**
+   * The maximum number of notices waiting to be delivered to the
+   * notice receiver, the oldest ones are dropped
+   */
+  public static int noticeQueueSize(Properties prop) {
+    return Integer.parseInt(prop.getProperty("notice_queue_size", "" + DEFAULT_NOTICE_QUEUE_SIZE).trim());
+  }
+
+  /**
+   * The maximum number of notices per second delivered to the notice
+   * receiver, the others are dropped. 0 means unlimited
+   */
+  public static double noticeRateLimit(Properties prop) {
+    return Double.parseDouble(prop.getProperty("notice_rate_limit", "0").trim());
+  }
+
+  /**
+   * Whether the socket is read by a background thread, so large
+   * results are received while they are being parsed. Ignored for
+   * SSL connections
+   */
+  public static boolean readAhead(Properties prop) {
+    return booleanOption(prop, "read_ahead", false);
+  }
+
+  /**
+   * Whether a backtrace is captured when an error is raised. Turning
+   * it off makes errors that are expected and rescued, e.g. unique
+   * violations, cheaper; they are raised with an empty backtrace
+   */
+  public static boolean errorBacktrace(Properties prop) {
+    return booleanOption(prop, "error_backtrace", true);
+  }
+
+  /**
+   * Parse a boolean option the way the server parses boolean settings,
+   * 1, on, true and yes or 0, off, false and no, ignoring case
+   *
+   * @throws IllegalArgumentException if the value is anything else
+   */
+  public static boolean booleanOption(Properties prop, String name, boolean defaultValue) {
+    String value = prop.getProperty(name);
+    if(value == null) {
+      return defaultValue;
+    }
+    value = value.trim();
+    if(value.equals("1") || value.equalsIgnoreCase("on") || value.equalsIgnoreCase("true") ||
+       value.equalsIgnoreCase("yes")) {
+      return true;
+    }
+    if(value.equals("0") || value.equalsIgnoreCase("off") || value.equalsIgnoreCase("false") ||
+       value.equalsIgnoreCase("no")) {
+      return false;
+    }
+    throw new IllegalArgumentException("invalid " + name + " value: \"" + value + "\"");
+  }
+
+  /**
+   * Return true if the host is a directory containing the server's
+   * unix domain socket, i.e. it's an absolute path
+   */
+  public static boolean isUnixSocket(Properties prop) {
+    return host(prop).startsWith("/");
+  }
+
+  /**
+   * Return the path of the server's unix domain socket, the socket
+   * name depends on the port like libpq
+   */
+  public static String unixSocketPath(Properties prop) {
+    String directory = host(prop);
+    if(directory.endsWith("/")) {
+      directory = directory.substring(0, directory.length() - 1);
+    }
+    return directory + "/.s.PGSQL." + port(prop);
+  }
+
   /**
    * Get the given key from prop, falling back to the given
    * environment variable and finally to defaultValue
@@ -0,0 +1,147 @@
+package org.jruby.pg.internal;
+
+import java.util.Arrays;
+
+import org.jruby.pg.messages.DataRow;
+
+/**
+ * The distinct values of a column and the code of the value of each
+ * row, a code is the index of the value in the dictionary and -1 for
+ * NULL.
+ *
+ * The values aren't copied, the dictionary references the bytes of the
+ * first row with each value. It gives up once the column has more
+ * than {@link #MAX_SIZE} distinct values, the codes are stored in
+ * shorts.
+ */
+public class ValueDictionary {
+  public static final int MAX_SIZE = 4096;
+
+  // open addressing hash table of code + 1, 0 for an empty slot
+  private int[] table = new int[64];
+  private byte[][] data = new byte[16][];
+  private int[] offsets = new int[16];
+  private int[] lengths = new int[16];
+  private int[] hashes = new int[16];
+  private int size;
+
+  private short[] codes = new short[1024];
+  private int rows;
+
+  /**
+   * Add the value of the given column of the row
+   *
+   * @return false if the column has too many distinct values, the
+   *         dictionary cannot be used anymore
+   */
+  boolean add(DataRow row, int column) {
+    int code = -1;
+    if(!row.isNull(column)) {
+      code = encode(row.getData(), row.getOffset(column), row.getValueLength(column));
+      if(code < 0) {
+        return false;
+      }
+    }
+
+    if(rows == codes.length) {
+      codes = Arrays.copyOf(codes, rows * 2);
+    }
+    codes[rows++] = (short) code;
+    return true;
+  }
+
+  /**
+   * Return the code of the value of the given row, -1 if it is NULL
+   */
+  public int getCode(int row) {
+    return codes[row];
+  }
+
+  /**
+   * Return the number of distinct values
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Return the array holding the value with the given code, it must
+   * not be modified
+   */
+  public byte[] getData(int code) {
+    return data[code];
+  }
+
+  public int getOffset(int code) {
+    return offsets[code];
+  }
+
+  public int getLength(int code) {
+    return lengths[code];
+  }
+
+  private int encode(byte[] bytes, int offset, int length) {
+    int hash = 1;
+    for(int i = offset; i < offset + length; i++) {
+      hash = 31 * hash + bytes[i];
+    }
+
+    int mask = table.length - 1;
+    int slot = hash & mask;
+    for(; table[slot] != 0; slot = (slot + 1) & mask) {
+      int code = table[slot] - 1;
+      if(hashes[code] == hash && equals(code, bytes, offset, length)) {
+        return code;
+      }
+    }
+
+    if(size == MAX_SIZE) {
+      return -1;
+    }
+    if(size == data.length) {
+      int capacity = size * 2;
+      data = Arrays.copyOf(data, capacity);
+      offsets = Arrays.copyOf(offsets, capacity);
+      lengths = Arrays.copyOf(lengths, capacity);
+      hashes = Arrays.copyOf(hashes, capacity);
+    }
+    int code = size++;
+    data[code] = bytes;
+    offsets[code] = offset;
+    lengths[code] = length;
+    hashes[code] = hash;
+    table[slot] = code + 1;
+
+    // keep the table at most half full
+    if(size * 2 > table.length) {
+      rehash();
+    }
+    return code;
+  }
+
+  private boolean equals(int code, byte[] bytes, int offset, int length) {
+    if(lengths[code] != length) {
+      return false;
+    }
+    byte[] value = data[code];
+    int valueOffset = offsets[code];
+    for(int i = 0; i < length; i++) {
+      if(value[valueOffset + i] != bytes[offset + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void rehash() {
+    table = new int[table.length * 2];
+    int mask = table.length - 1;
+    for(int code = 0; code < size; code++) {
+      int slot = hashes[code] & mask;
+      while(table[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      table[slot] = code + 1;
+    }
+  }
+}
@@ -0,0 +1,244 @@
+package org.jruby.pg.internal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.jruby.pg.messages.PrimaryKeepalive;
+import org.jruby.pg.messages.StandbyStatusUpdate;
+import org.jruby.pg.messages.XLogData;
+
+/**
+ * Receives the data streamed by the server after START_REPLICATION and
+ * keeps the server informed of the progress of the client.
+ *
+ * Status updates are sent by the shared timer every status interval,
+ * even if the client stops reading, and whenever the server asks for
+ * one in a keepalive. The written position is the start of the last
+ * message received, the flushed and applied positions are the ones
+ * passed to {@link #acknowledge(long)}, the server keeps the WAL after
+ * them.
+ *
+ * The methods of the connection must not be used until the stream is
+ * closed.
+ */
+public class WalReceiver implements Iterator<XLogData>, Closeable {
+  private final PostgresqlConnection conn;
+  private final long statusIntervalMillis;
+
+  private long receivedLsn;
+  private long flushedLsn;
+  private TimerWheel.Timeout statusTimeout;
+  private boolean done;
+  private boolean closed;
+  private XLogData next;
+
+  /**
+   * Start receiving the data of the given connection, which must be in
+   * CopyBoth mode
+   *
+   * @param statusIntervalMillis the interval between status updates,
+   *        0 to only send them when the server asks
+   */
+  public WalReceiver(PostgresqlConnection conn, long statusIntervalMillis) throws IOException {
+    if(!conn.isCopyBoth()) {
+      throw new IOException("connection isn't streaming replication data");
+    }
+    this.conn = conn;
+    this.statusIntervalMillis = statusIntervalMillis;
+    scheduleStatus();
+  }
+
+  /**
+   * Return the next message, waiting up to timeoutMillis for it. Return
+   * null if the timeout elapsed or the server ended the stream, see
+   * {@link #isDone()}. A timeout of 0 means wait forever
+   */
+  public XLogData read(long timeoutMillis) throws IOException {
+    if(next != null) {
+      XLogData msg = next;
+      next = null;
+      return msg;
+    }
+
+    long deadline = timeoutMillis > 0 ? System.currentTimeMillis() + timeoutMillis : 0;
+    Selector selector = null;
+    try {
+      for(;;) {
+        synchronized(this) {
+          if(done || closed) {
+            return null;
+          }
+          byte[] payload = conn.getCopyData(true);
+          if(payload == null) {
+            done = true;
+            return null;
+          }
+          if(payload.length > 0) {
+            XLogData msg = handle(payload);
+            if(msg != null) {
+              return msg;
+            }
+            continue;
+          }
+        }
+
+        // wait without holding the lock, so the status updates can be
+        // sent
+        long remaining = 0;
+        if(deadline > 0) {
+          remaining = deadline - System.currentTimeMillis();
+          if(remaining <= 0) {
+            return null;
+          }
+        }
+        if(selector == null) {
+          selector = Selector.open();
+          conn.getSocket().register(selector, SelectionKey.OP_READ);
+        }
+        selector.select(remaining);
+        selector.selectedKeys().clear();
+      }
+    } finally {
+      if(selector != null) {
+        selector.close();
+      }
+    }
+  }
+
+  private XLogData handle(byte[] payload) throws IOException {
+    switch(payload[0]) {
+    case 'w':
+      XLogData data = XLogData.parse(payload);
+      receivedLsn = Math.max(receivedLsn, data.getWalStart());
+      return data;
+
+    case 'k':
+      PrimaryKeepalive keepalive = PrimaryKeepalive.parse(payload);
+      if(keepalive.isReplyRequested()) {
+        sendStatus(false);
+      }
+      return null;
+
+    default:
+      throw new IOException("unexpected replication message '" + (char) payload[0] + "'");
+    }
+  }
+
+  /**
+   * Tell the server that all the data up to the given position has
+   * been processed, it's reported in the next status update
+   */
+  public synchronized void acknowledge(long lsn) {
+    flushedLsn = Math.max(flushedLsn, lsn);
+  }
+
+  /**
+   * Send a status update right away
+   */
+  public synchronized void sendStatus(boolean replyRequested) throws IOException {
+    if(closed || done || !conn.isCopyBoth()) {
+      return;
+    }
+    conn.putCopyData(StandbyStatusUpdate.encode(receivedLsn, flushedLsn, flushedLsn,
+                                                System.currentTimeMillis(), replyRequested));
+  }
+
+  /**
+   * Return the start of the last message received
+   */
+  public synchronized long getReceivedLsn() {
+    return receivedLsn;
+  }
+
+  public synchronized long getFlushedLsn() {
+    return flushedLsn;
+  }
+
+  /**
+   * Return true if the server ended the stream
+   */
+  public synchronized boolean isDone() {
+    return done;
+  }
+
+  private synchronized void scheduleStatus() {
+    if(statusIntervalMillis <= 0 || closed || done) {
+      return;
+    }
+    statusTimeout = PostgresqlConnection.getCancelTimer().schedule(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          sendStatus(false);
+          scheduleStatus();
+        } catch(IOException ex) {
+          // the connection is broken, read() will fail too
+        }
+      }
+    }, statusIntervalMillis);
+  }
+
+  /**
+   * Send a final status update and end the stream. The connection can
+   * be used again once the remaining data and the results are
+   * consumed, getResult() returns them
+   */
+  @Override
+  public void close() throws IOException {
+    synchronized(this) {
+      if(closed) {
+        return;
+      }
+      if(statusTimeout != null) {
+        statusTimeout.cancel();
+      }
+      if(!done) {
+        sendStatus(false);
+      }
+      if(conn.isCopyBoth() || conn.isCopyIn()) {
+        conn.putCopyEnd(null);
+      } else {
+        // the server ended the stream with an error, there's nothing
+        // to end and nothing left to skip
+        done = true;
+      }
+      closed = true;
+    }
+    if(!done) {
+      // skip the data sent before the server saw the CopyDone
+      while(conn.getCopyData(false) != null) {
+      }
+    }
+  }
+
+  @Override
+  public boolean hasNext() {
+    if(next == null) {
+      try {
+        next = read(0);
+      } catch(IOException ex) {
+        throw new IllegalStateException(ex.getMessage(), ex);
+      }
+    }
+    return next != null;
+  }
+
+  @Override
+  public XLogData next() {
+    if(!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    XLogData msg = next;
+    next = null;
+    return msg;
+  }
+
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+}
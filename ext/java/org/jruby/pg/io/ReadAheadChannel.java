@@ -0,0 +1,249 @@
+package org.jruby.pg.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.Pipe;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A {@link FlushableByteChannel} that reads the socket on a background
+ * thread, so the data of the next messages is received while the
+ * current ones are parsed.
+ *
+ * The reader thread fills the chunks of a single producer single
+ * consumer ring, {@link #read(ByteBuffer)} drains them. When the ring
+ * is full the reader stops reading the socket and TCP throttles the
+ * server until the chunks are consumed. The socket is drained by the
+ * reader thread, use {@link #getReadableChannel()} to wait for data.
+ * Writes go straight to the underlying channel.
+ */
+public class ReadAheadChannel implements FlushableByteChannel {
+  private final FlushableByteChannel channel;
+  private final Selector selector;
+  private final Thread reader;
+
+  // a byte is written to the pipe every time a chunk is filled, so
+  // the pipe's source is readable when there is data to read
+  private final Pipe signal;
+  private final ByteBuffer signalBuffer = ByteBuffer.allocate(64);
+  private final ByteBuffer readerByte = ByteBuffer.allocate(1);
+  private final ByteBuffer consumerByte = ByteBuffer.allocate(1);
+
+  private final ByteBuffer[] chunks;
+  // the number of chunks filled by the reader and consumed by read(),
+  // chunks[n % chunks.length] is the chunk of the n-th fill
+  private volatile long filled;
+  private volatile long consumed;
+  // true if the reader is parked waiting for a free chunk
+  private volatile boolean readerWaiting;
+
+  private volatile boolean closed;
+  private volatile boolean eof;
+  private volatile IOException error;
+
+  /**
+   * Start reading the given socket in the background
+   *
+   * @param socket the non blocking socket
+   * @param channel the channel to read from and write to
+   * @param chunks the number of chunks in the ring
+   * @param chunkSize the size of each chunk
+   */
+  public ReadAheadChannel(SocketChannel socket, FlushableByteChannel channel,
+                          int chunks, int chunkSize) throws IOException {
+    this.channel = channel;
+    this.chunks = new ByteBuffer[chunks];
+    for(int i = 0; i < chunks; i++) {
+      this.chunks[i] = ByteBuffer.allocate(chunkSize);
+    }
+
+    signal = Pipe.open();
+    signal.source().configureBlocking(false);
+    signal.sink().configureBlocking(false);
+
+    selector = Selector.open();
+    socket.register(selector, SelectionKey.OP_READ);
+
+    reader = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        readLoop();
+      }
+    }, "pg-read-ahead");
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  /**
+   * Return a channel that is ready for read when there is data to be
+   * read from this channel, or the socket was closed
+   */
+  public SelectableChannel getReadableChannel() {
+    return signal.source();
+  }
+
+  @Override
+  public int read(ByteBuffer dst) throws IOException {
+    // drain the signal before checking the ring, a chunk filled
+    // after that writes a new byte. Once the reader stopped the signal
+    // is left readable, like a socket at the end of the stream
+    if(!eof && error == null) {
+      signalBuffer.clear();
+      while(signal.source().read(signalBuffer) > 0) {
+        signalBuffer.clear();
+      }
+    }
+
+    int read = 0;
+    while(dst.hasRemaining() && consumed < filled) {
+      ByteBuffer chunk = chunks[(int) (consumed % chunks.length)];
+      if(chunk.remaining() <= dst.remaining()) {
+        read += chunk.remaining();
+        dst.put(chunk);
+        release();
+      } else {
+        int limit = chunk.limit();
+        chunk.limit(chunk.position() + dst.remaining());
+        read += chunk.remaining();
+        dst.put(chunk);
+        chunk.limit(limit);
+      }
+    }
+
+    if(consumed < filled) {
+      // keep the signal readable while there is data left, like a
+      // socket with unread data
+      notifyReadable(consumerByte);
+    } else if(read == 0) {
+      if(error != null) {
+        throw error;
+      }
+      if(eof) {
+        return -1;
+      }
+    }
+    return read;
+  }
+
+  /**
+   * Give the consumed chunk back to the reader
+   */
+  private void release() {
+    consumed++;
+    if(readerWaiting) {
+      LockSupport.unpark(reader);
+    }
+  }
+
+  private void readLoop() {
+    try {
+      while(!closed) {
+        while(filled - consumed == chunks.length) {
+          // the ring is full, wait for read() to consume a chunk
+          readerWaiting = true;
+          if(filled - consumed == chunks.length && !closed) {
+            LockSupport.park(this);
+          }
+          readerWaiting = false;
+          if(closed) {
+            return;
+          }
+        }
+
+        ByteBuffer chunk = chunks[(int) (filled % chunks.length)];
+        chunk.clear();
+        int n = channel.read(chunk);
+        if(n < 0) {
+          eof = true;
+          break;
+        }
+        if(n == 0) {
+          selector.select();
+          selector.selectedKeys().clear();
+          continue;
+        }
+
+        // read whatever else is available before publishing the chunk
+        while(chunk.hasRemaining() && channel.read(chunk) > 0) {
+        }
+        chunk.flip();
+        filled++;
+        notifyReadable(readerByte);
+      }
+    } catch(ClosedSelectorException ex) {
+      // closed while waiting
+    } catch(IOException ex) {
+      if(!closed) {
+        error = ex;
+      }
+    } finally {
+      try {
+        selector.close();
+      } catch(IOException ex) {
+        // ignore
+      }
+      notifyReadable(readerByte);
+    }
+  }
+
+  private void notifyReadable(ByteBuffer oneByte) {
+    try {
+      oneByte.clear();
+      // if the pipe is full there are already pending signals
+      signal.sink().write(oneByte);
+    } catch(IOException ex) {
+      // the channel was closed
+    }
+  }
+
+  /**
+   * Stop the reader thread without closing the underlying channel,
+   * the socket isn't registered with the reader's selector anymore
+   * once this method returns
+   */
+  public void stopReading() {
+    if(closed) {
+      return;
+    }
+    closed = true;
+    selector.wakeup();
+    LockSupport.unpark(reader);
+    try {
+      reader.join();
+    } catch(InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+    try {
+      signal.source().close();
+      signal.sink().close();
+    } catch(IOException ex) {
+      // ignore
+    }
+  }
+
+  @Override
+  public boolean isOpen() {
+    return channel.isOpen();
+  }
+
+  @Override
+  public void close() throws IOException {
+    stopReading();
+    channel.close();
+  }
+
+  @Override
+  public int write(ByteBuffer src) throws IOException {
+    return channel.write(src);
+  }
+
+  @Override
+  public boolean flush() throws IOException {
+    return channel.flush();
+  }
+}
@@ -7,6 +7,9 @@ import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Set;
 
 import javax.net.ssl.*;
 
@@ -19,6 +22,10 @@ public class SecureByteChannel implements FlushableByteChannel {
   // written, e.g. when the SSLEngine is doing handhsake
   private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
 
+  // the encrypted buffers can hold this many records, so a single
+  // read or write on the underlying channel moves several records
+  private static final int RECORDS_PER_IO = 4;
+
   // A dummy trust manager that trusts all certificates
   private static final TrustManager[] DUMMY_TRUST_MANAGER = new TrustManager[] {
   new X509TrustManager() {
@@ -37,6 +44,11 @@ public class SecureByteChannel implements FlushableByteChannel {
   }
   };
 
+  // the context used when the certificate isn't verified. It is
+  // shared by all connections, like the default context, so the
+  // sessions it caches can be resumed by later connections
+  private static SSLContext unverifiedContext;
+
   // the ssl engine where all the encryption/decryption happen
   private final SSLEngine sslEngine;
   // The underlying channel that we read/write to/from
@@ -47,70 +59,159 @@ public class SecureByteChannel implements FlushableByteChannel {
   private final ByteBuffer inBuffer;
   // and output buffer, always ready for a put()
   private final ByteBuffer outBuffer;
+  // the maximum size of an encrypted record
+  private final int packetBufferSize;
+  // the ids of the sessions cached before the handshake, used to tell
+  // whether the session was resumed. null once the handshake finished
+  private Set<ByteBuffer> cachedSessionIds;
+  private boolean sessionResumed;
 
   /**
    * Create a new SecureByteChannel that will wrap the given channel
    *
    * @param channel the underlying byte channel
    * @param verify verify the certificate returned by the server
+   * @param host the host of the server, used along with the port to
+   *        find a session that can be resumed
+   * @param port the port of the server
    *
    * @throws NoSuchAlgorithmException if we can't create an SSLEngine
    * @throws KeyManagementException
    */
-  public SecureByteChannel(ByteChannel channel, boolean verify)
+  public SecureByteChannel(ByteChannel channel, boolean verify, String host, int port)
+  throws NoSuchAlgorithmException, KeyManagementException, SSLException {
+    this(channel, verify, host, port, null);
+  }
+
+  /**
+   * Create a new SecureByteChannel that will wrap the given channel
+   * and offer the given ALPN protocols during the handshake
+   *
+   * @param applicationProtocols the ALPN protocols, or null to skip ALPN
+   *
+   * @throws SSLException if the JVM doesn't support ALPN
+   * @see #SecureByteChannel(ByteChannel, boolean, String, int)
+   */
+  public SecureByteChannel(ByteChannel channel, boolean verify, String host, int port,
+                           String[] applicationProtocols)
   throws NoSuchAlgorithmException, KeyManagementException, SSLException {
     this.channel = channel;
-    SSLContext context;
-    if(!verify) {
-      // if we don't have to verify the cert, use the
-      // DUMMY_TRUST_MANAGER which will accept any cert
-      context = SSLContext.getInstance("SSL");
-      context.init(null, DUMMY_TRUST_MANAGER, null);
-    } else {
-      // otherwise, use the default which will only accept certs
-      // signed by a trusted CA
-      context = SSLContext.getDefault();
-    }
-    sslEngine = context.createSSLEngine();
+    SSLContext context = getContext(verify);
+    sslEngine = context.createSSLEngine(host, port);
     sslEngine.setUseClientMode(true);
+    if(applicationProtocols != null) {
+      setApplicationProtocols(applicationProtocols);
+    }
     SSLSession session = sslEngine.getSession();
 
+    packetBufferSize = session.getPacketBufferSize();
     // inBuffer should always be in a get() state
-    inBuffer = ByteBuffer.allocate(session.getPacketBufferSize());
+    inBuffer = ByteBuffer.allocate(packetBufferSize * RECORDS_PER_IO);
     inBuffer.flip();
     // decryptedBuffer should always be in a get() state
     decryptedBuffer = ByteBuffer.allocate(session.getApplicationBufferSize());
     decryptedBuffer.flip();
-    outBuffer = ByteBuffer.allocate(session.getPacketBufferSize());
+    outBuffer = ByteBuffer.allocate(packetBufferSize * RECORDS_PER_IO);
+
+    cachedSessionIds = new HashSet<ByteBuffer>();
+    Enumeration<byte[]> ids = context.getClientSessionContext().getIds();
+    while(ids.hasMoreElements()) {
+      cachedSessionIds.add(ByteBuffer.wrap(ids.nextElement()));
+    }
 
     // begin the handshake, if we are here then the server has
     // accepted to encrypt the connection
     sslEngine.beginHandshake();
   }
 
+  /**
+   * Return true if the handshake resumed a cached session instead of
+   * negotiating a new one, false until the handshake is finished
+   */
+  public boolean isSessionResumed() {
+    return sessionResumed;
+  }
+
+  /**
+   * Return the ALPN protocol negotiated during the handshake, null if
+   * none was negotiated or the JVM doesn't support ALPN
+   */
+  public String getApplicationProtocol() {
+    try {
+      String protocol = (String) SSLEngine.class.getMethod("getApplicationProtocol").invoke(sslEngine);
+      return protocol == null || protocol.isEmpty() ? null : protocol;
+    } catch(Exception ex) {
+      return null;
+    }
+  }
+
+  private void setApplicationProtocols(String[] protocols) throws SSLException {
+    // ALPN is only available on Java 9+ (and recent Java 8 updates),
+    // use reflection so we still run on older JVMs
+    try {
+      SSLParameters parameters = sslEngine.getSSLParameters();
+      SSLParameters.class.getMethod("setApplicationProtocols", String[].class)
+        .invoke(parameters, (Object) protocols);
+      sslEngine.setSSLParameters(parameters);
+    } catch(NoSuchMethodException ex) {
+      throw new SSLException("ALPN isn't supported by this JVM");
+    } catch(Exception ex) {
+      throw new SSLException("cannot set the ALPN protocols", ex);
+    }
+  }
+
+  private static SSLContext getContext(boolean verify)
+  throws NoSuchAlgorithmException, KeyManagementException {
+    if(verify) {
+      // use the default which will only accept certs signed by a
+      // trusted CA
+      return SSLContext.getDefault();
+    }
+
+    // if we don't have to verify the cert, use the
+    // DUMMY_TRUST_MANAGER which will accept any cert
+    synchronized(SecureByteChannel.class) {
+      if(unverifiedContext == null) {
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, DUMMY_TRUST_MANAGER, null);
+        unverifiedContext = context;
+      }
+      return unverifiedContext;
+    }
+  }
+
+  private void handshakeFinished() {
+    if(cachedSessionIds == null) {
+      return;
+    }
+    // a resumed session keeps the id it was cached with, TLS 1.3
+    // tickets included, a full handshake creates a session with a new id
+    byte[] id = sslEngine.getSession().getId();
+    sessionResumed = id.length > 0 && cachedSessionIds.contains(ByteBuffer.wrap(id));
+    cachedSessionIds = null;
+  }
+
   /**
    * Read from the underlying channel and decrypt the data into buf
    *
    * @return the number of bytes inserted into buf
    */
   public int read(ByteBuffer buf) throws IOException {
+    if(!decryptedBuffer.hasRemaining() && buf.remaining() >= decryptedBuffer.capacity()) {
+      // buf has room for at least one record, decrypt directly into
+      // it instead of going through the decryptedBuffer
+      int start = buf.position();
+      readEncrypted();
+      unwrap(buf);
+      return buf.position() - start;
+    }
+
     if(!decryptedBuffer.hasRemaining()) {
       // read from the underlying socket and decrypt if the
       // decryptedBuffer is empty
       decryptedBuffer.clear();
-      inBuffer.compact();
-      channel.read(inBuffer);
-      inBuffer.flip();
-      // as long as we are consuming data from the inBuffer or
-      // generating data in the decryptedBuffer keep going. This is
-      // essential, otherwise there are cases when the SSLEngine will
-      // consume part of the buffer without generating any data and
-      // the caller has no way to know whether there are more data in
-      // the inBuffer or not.
-      SSLEngineResult res;
-      do {
-        res = sslEngine.unwrap(inBuffer, decryptedBuffer);
-      } while(res.bytesConsumed() > 0 || res.bytesProduced() > 0);
+      readEncrypted();
+      unwrap(decryptedBuffer);
       decryptedBuffer.flip();
     }
 
@@ -126,19 +227,50 @@ public class SecureByteChannel implements FlushableByteChannel {
     return remaining;
   }
 
+  private void readEncrypted() throws IOException {
+    inBuffer.compact();
+    channel.read(inBuffer);
+    inBuffer.flip();
+  }
+
+  private void unwrap(ByteBuffer dst) throws IOException {
+    // as long as we are consuming data from the inBuffer or
+    // generating data in dst keep going. This is essential,
+    // otherwise there are cases when the SSLEngine will consume part
+    // of the buffer without generating any data and the caller has no
+    // way to know whether there are more data in the inBuffer or
+    // not. The loop also stops when dst doesn't have room for the
+    // next record, which is left in the inBuffer for the next read
+    SSLEngineResult res;
+    do {
+      res = sslEngine.unwrap(inBuffer, dst);
+    } while(res.bytesConsumed() > 0 || res.bytesProduced() > 0);
+  }
+
   /**
    * Encrypt and write the data in the given buffer to the underlying
-   * channel
+   * channel. As many records as fit in the output buffer are
+   * encrypted and sent with a single write
    *
    * @return the number of bytes consumed from the buffer
    */
   public int write(ByteBuffer buf) throws IOException {
-    int bytesConsumed = sslEngine.wrap(buf, outBuffer).bytesConsumed();
-    if(bytesConsumed == 0) {
-      outBuffer.flip();
+    int bytesConsumed = 0;
+    SSLEngineResult res;
+    do {
+      if(outBuffer.remaining() < packetBufferSize) {
+        // no room for another record
+        break;
+      }
+      res = sslEngine.wrap(buf, outBuffer);
+      bytesConsumed += res.bytesConsumed();
+    } while(buf.hasRemaining() && res.bytesConsumed() > 0);
+
+    outBuffer.flip();
+    if(outBuffer.hasRemaining()) {
       channel.write(outBuffer);
-      outBuffer.compact();
     }
+    outBuffer.compact();
 
     return bytesConsumed;
   }
@@ -199,6 +331,7 @@ public class SecureByteChannel implements FlushableByteChannel {
 
       case NOT_HANDSHAKING:
       case FINISHED:
+        handshakeFinished();
         return HandshakeStatus.FINISHED;
 
       default:
@@ -0,0 +1,24 @@
+package org.jruby.pg.messages;
+
+import java.util.List;
+
+public class AuthenticationSASL extends BackendMessage {
+  private final List<String> mechanisms;
+
+  public AuthenticationSASL(List<String> mechanisms) {
+    this.mechanisms = mechanisms;
+  }
+
+  @Override
+  public MessageType getType() {
+    return MessageType.AuthenticationSASL;
+  }
+
+  /**
+   * Return the SASL mechanisms supported by the server in order of
+   * preference
+   */
+  public List<String> getMechanisms() {
+    return mechanisms;
+  }
+}
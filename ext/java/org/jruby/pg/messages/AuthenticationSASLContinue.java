@@ -0,0 +1,18 @@
+package org.jruby.pg.messages;
+
+public class AuthenticationSASLContinue extends BackendMessage {
+  private final byte[] data;
+
+  public AuthenticationSASLContinue(byte[] data) {
+    this.data = data;
+  }
+
+  @Override
+  public MessageType getType() {
+    return MessageType.AuthenticationSASLContinue;
+  }
+
+  public byte[] getData() {
+    return data;
+  }
+}
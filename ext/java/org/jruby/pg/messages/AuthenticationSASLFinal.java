@@ -0,0 +1,18 @@
+package org.jruby.pg.messages;
+
+public class AuthenticationSASLFinal extends BackendMessage {
+  private final byte[] data;
+
+  public AuthenticationSASLFinal(byte[] data) {
+    this.data = data;
+  }
+
+  @Override
+  public MessageType getType() {
+    return MessageType.AuthenticationSASLFinal;
+  }
+
+  public byte[] getData() {
+    return data;
+  }
+}
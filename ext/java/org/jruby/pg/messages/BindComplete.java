@@ -1,6 +1,12 @@
 package org.jruby.pg.messages;
 
 public class BindComplete extends BackendMessage {
+  // the message has no content, the same instance is used for all
+  public static final BindComplete INSTANCE = new BindComplete();
+
+  private BindComplete() {
+  }
+
   @Override
   public MessageType getType() {
     return MessageType.BindComplete;
@@ -1,6 +1,12 @@
 package org.jruby.pg.messages;
 
 public class CloseComplete extends BackendMessage {
+  // the message has no content, the same instance is used for all
+  public static final CloseComplete INSTANCE = new CloseComplete();
+
+  private CloseComplete() {
+  }
+
   @Override
   public MessageType getType() {
     return MessageType.CloseComplete;
@@ -1,28 +1,105 @@
 package org.jruby.pg.messages;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
 public class CommandComplete extends BackendMessage {
-  private static final Pattern COMMANDS = Pattern.compile("(INSERT|DELETE|UPDATE|MOVE|FETCH)(\\s+\\d+)?\\s+(\\d+)");
+  // the commands whose tag ends with the number of rows, INSERT is
+  // followed by the oid of the inserted row then the number of rows
+  private static final String[] COMMANDS = {
+    "INSERT", "DELETE", "UPDATE", "SELECT", "MOVE", "FETCH", "COPY", "MERGE"
+  };
 
   private final String command;
-  private final int oid;
-  private final int rows;
+  private final long oid;
+  private final long rows;
   private final String tag;
 
   public CommandComplete(String tag) {
     this.tag = tag;
-    Matcher matcher = COMMANDS.matcher(tag);
-    if(matcher.matches()) {
-      command = matcher.group(1);
-      rows = Integer.parseInt(matcher.group(3));
-      oid = matcher.group(2) == null ? -1 : Integer.parseInt(matcher.group(2).trim());
+
+    String command = null;
+    int i = 0;
+    for(String candidate : COMMANDS) {
+      if(tag.startsWith(candidate) && tag.length() > candidate.length() &&
+         tag.charAt(candidate.length()) == ' ') {
+        command = candidate;
+        i = candidate.length() + 1;
+        break;
+      }
+    }
+
+    long first = -1;
+    long second = -1;
+    if(command != null) {
+      int end = skipNumber(tag, i);
+      first = parseNumber(tag, i, end);
+      if(end < tag.length() && tag.charAt(end) == ' ' && command.equals("INSERT")) {
+        int secondEnd = skipNumber(tag, end + 1);
+        second = parseNumber(tag, end + 1, secondEnd);
+        end = secondEnd;
+      }
+      if(end != tag.length() || first < 0 || command.equals("INSERT") && second < 0) {
+        // not the tag of one of the commands
+        command = null;
+      }
+    }
+
+    if(command == null) {
+      this.command = tag;
+      this.oid = -1;
+      this.rows = 0;
+    } else if(command.equals("INSERT")) {
+      this.command = command;
+      this.oid = first;
+      this.rows = second;
     } else {
-      command = tag;
-      oid = -1;
-      rows = 0;
+      this.command = command;
+      this.oid = -1;
+      this.rows = first;
+    }
+  }
+
+  private static int skipNumber(String tag, int start) {
+    int i = start;
+    while(i < tag.length() && tag.charAt(i) >= '0' && tag.charAt(i) <= '9') {
+      i++;
+    }
+    return i;
+  }
+
+  /**
+   * Return the value of the digits between start and end, -1 if there
+   * are none or the value doesn't fit in a long
+   */
+  private static long parseNumber(String tag, int start, int end) {
+    if(start == end) {
+      return -1;
+    }
+    long value = 0;
+    for(int i = start; i < end; i++) {
+      int digit = tag.charAt(i) - '0';
+      if(value > (Long.MAX_VALUE - digit) / 10) {
+        return -1;
+      }
+      value = value * 10 + digit;
+    }
+    return value;
+  }
+
+  /**
+   * Return true if the given bytes are the tag of this message, i.e.
+   * the message can be reused instead of parsing the bytes. Only
+   * ASCII tags are compared
+   */
+  public boolean hasTag(byte[] bytes, int offset, int length) {
+    if(tag.length() != length) {
+      return false;
+    }
+    for(int i = 0; i < length; i++) {
+      byte b = bytes[offset + i];
+      if(b < 0 || tag.charAt(i) != b) {
+        return false;
+      }
     }
+    return true;
   }
 
   @Override
@@ -38,11 +115,15 @@ public class CommandComplete extends BackendMessage {
     return command;
   }
 
-  public int getOid() {
+  /**
+   * Return the oid of the row inserted by INSERT, -1 for the other
+   * commands
+   */
+  public long getOid() {
     return oid;
   }
 
-  public int getRows() {
+  public long getRows() {
     return rows;
   }
 }
@@ -0,0 +1,12 @@
+package org.jruby.pg.messages;
+
+public class CopyBothResponse extends CopyResponse {
+  public CopyBothResponse(Format overallFormat, Format[] columnFormats) {
+    super(overallFormat, columnFormats);
+  }
+
+  @Override
+  public MessageType getType() {
+    return MessageType.CopyBothResponse;
+  }
+}
@@ -1,7 +1,12 @@
 package org.jruby.pg.messages;
 
-
 public class CopyDone extends FrontendMessage {
+  // the message has no content, the same instance is used for all
+  public static final CopyDone INSTANCE = new CopyDone();
+
+  private CopyDone() {
+  }
+
   @Override
   public MessageType getType() {
     return MessageType.CopyDone;
@@ -1,11 +1,46 @@
 package org.jruby.pg.messages;
 
 
+/**
+ * A row of a result. The values share a single backing array, which
+ * holds the values as they were received on the wire, i.e. each value
+ * is preceded by its length. Use {@link #getOffset(int)} and {@link
+ * #getValueLength(int)} to access a value without copying it.
+ */
 public class DataRow extends BackendMessage {
-  private final byte[][] values;
+  private final byte[] data;
+  // the offset of each value in data
+  private final int[] offsets;
+  // the length of each value, -1 for NULL
+  private final int[] lengths;
+  private final int length;
+  private byte[][] values;
 
-  public DataRow(byte[][] values, int length) {
-    this.values = values;
+  /**
+   * Create a new row
+   *
+   * @param columns the number of values in data
+   * @param data the values, each preceded by its length as a 32-bit
+   *        integer, -1 for NULL
+   * @param length the length of the message on the wire
+   */
+  public DataRow(int columns, byte[] data, int length) {
+    this.data = data;
+    this.offsets = new int[columns];
+    this.lengths = new int[columns];
+    this.length = length;
+
+    int position = 0;
+    for(int i = 0; i < columns; i++) {
+      int valueLength = (data[position] & 0xff) << 24 | (data[position + 1] & 0xff) << 16 |
+                        (data[position + 2] & 0xff) << 8 | (data[position + 3] & 0xff);
+      position += 4;
+      offsets[i] = position;
+      lengths[i] = valueLength;
+      if(valueLength > 0) {
+        position += valueLength;
+      }
+    }
   }
 
   @Override
@@ -13,7 +48,63 @@ public class DataRow extends BackendMessage {
     return MessageType.DataRow;
   }
 
+  /**
+   * Return a copy of the values, NULL values are null. The copy is
+   * made once
+   */
   public byte[][] getValues() {
+    if(values == null) {
+      byte[][] copy = new byte[offsets.length][];
+      for(int i = 0; i < copy.length; i++) {
+        if(lengths[i] >= 0) {
+          copy[i] = new byte[lengths[i]];
+          System.arraycopy(data, offsets[i], copy[i], 0, lengths[i]);
+        }
+      }
+      values = copy;
+    }
     return values;
   }
+
+  /**
+   * Return the number of values in the row
+   */
+  public int getColumnCount() {
+    return offsets.length;
+  }
+
+  /**
+   * Return true if the given value is NULL
+   */
+  public boolean isNull(int column) {
+    return lengths[column] < 0;
+  }
+
+  /**
+   * Return the array backing the values, it must not be modified
+   */
+  public byte[] getData() {
+    return data;
+  }
+
+  /**
+   * Return the offset of the given value in the backing array
+   */
+  public int getOffset(int column) {
+    return offsets[column];
+  }
+
+  /**
+   * Return the length of the given value, -1 if it is NULL
+   */
+  public int getValueLength(int column) {
+    return lengths[column];
+  }
+
+  /**
+   * Return the length of the message on the wire
+   */
+  public int getLength() {
+    return length;
+  }
 }
@@ -1,7 +1,7 @@
 package org.jruby.pg.messages;
 
-import java.io.PrintWriter;
-import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Map;
 
 public class ErrorResponse extends BackendMessage {
@@ -38,34 +38,55 @@ public class ErrorResponse extends BackendMessage {
     }
   }
 
-  private final Map<Byte, String> fields;
-  private final String err;
+  private static final ErrorField[] FIELDS = ErrorField.values();
+  // the index in values of each field code, -1 if the code isn't one
+  // of the ErrorFields
+  private static final byte[] INDEX = new byte[128];
 
-  // the first byte of each array element is the code followed by the value
-  public ErrorResponse(Map<Byte, String> fields, int length) {
-    this.fields = fields;
-
-    // construct the error message
-    StringWriter sWriter = new StringWriter();
-    PrintWriter writer = new PrintWriter(sWriter);
-    String fieldVal = null;
-    if((fieldVal = getErrorField(ErrorField.PG_DIAG_SEVERITY)) != null) {
-      writer.printf("%s: ", fieldVal);
+  static {
+    Arrays.fill(INDEX, (byte) -1);
+    for(int i = 0; i < FIELDS.length; i++) {
+      INDEX[FIELDS[i].code] = (byte) i;
     }
-    // only do this for verbose errors
-    // if ((fieldVal = getErrorField(PG_DIAG_SQLSTATE)) != null) {
-    //   writer.printf("%s: ", fieldVal);
-    // }
+  }
 
-    if((fieldVal = getErrorField(ErrorField.PG_DIAG_MESSAGE_PRIMARY)) != null) {
-      writer.append(fieldVal);
-    }
+  // the value of each ErrorField, indexed by ordinal
+  private final String[] values = new String[FIELDS.length];
+  // the fields whose codes aren't known, null if there are none
+  private Map<Byte, String> otherFields;
+  // built on first use, most expected errors are never printed
+  private String err;
 
-    writer.flush();
-    err = sWriter.toString();
+  public ErrorResponse(int length) {
+  }
+
+  /**
+   * Set the value of the field with the given code, used while the
+   * message is being parsed
+   */
+  public void setField(byte code, String value) {
+    int index = code >= 0 ? INDEX[code] : -1;
+    if(index >= 0) {
+      values[index] = value;
+      return;
+    }
+    if(otherFields == null) {
+      otherFields = new HashMap<Byte, String>();
+    }
+    otherFields.put(code, value);
   }
 
   public String getErrorMessage() {
+    if(err == null) {
+      String severity = values[ErrorField.PG_DIAG_SEVERITY.ordinal()];
+      String primary = values[ErrorField.PG_DIAG_MESSAGE_PRIMARY.ordinal()];
+      // the sqlstate is only part of verbose errors
+      if(severity == null) {
+        err = primary == null ? "" : primary;
+      } else {
+        err = primary == null ? severity + ": " : severity + ": " + primary;
+      }
+    }
     return err;
   }
 
@@ -74,16 +95,23 @@ public class ErrorResponse extends BackendMessage {
     return MessageType.ErrorResponse;
   }
 
-  public Map<Byte, String> getFields() {
-    return fields;
+  /**
+   * Return the value of the field with the given code, null if the
+   * field wasn't sent
+   */
+  public String getErrorField(byte code) {
+    int index = code >= 0 ? INDEX[code] : -1;
+    if(index >= 0) {
+      return values[index];
+    }
+    return otherFields == null ? null : otherFields.get(code);
   }
 
   public String getErrorField(ErrorField field) {
-    return fields.get(field.code);
+    return values[field.ordinal()];
   }
 
   public boolean isFatal() {
-    String string = fields.get('S');
-    return string != null && string.equals("FATAL");
+    return "FATAL".equals(getErrorField(ErrorField.PG_DIAG_SEVERITY));
   }
 }
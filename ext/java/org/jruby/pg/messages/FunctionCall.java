@@ -0,0 +1,45 @@
+package org.jruby.pg.messages;
+
+/**
+ * The fastpath function call message, it calls the function with the
+ * given oid directly without going through the parser and planner
+ */
+public class FunctionCall extends FrontendMessage {
+  private final int oid;
+  private final Value[] args;
+  private final Format resultFormat;
+
+  public FunctionCall(int oid, Value[] args, Format resultFormat) {
+    this.oid = oid;
+    this.args = args;
+    this.resultFormat = resultFormat;
+  }
+
+  @Override
+  public void writeInternal(ProtocolWriter writer) {
+    writer.writeInt(oid);
+    writer.writeShort(args.length);
+    for(Value arg : args) {
+      writer.writeShort(arg.getFormat().getValue());
+    }
+    writer.writeShort(args.length);
+    for(Value arg : args) {
+      if(arg.getBytes() == null) {
+        writer.writeInt(-1);
+      } else {
+        writer.writeInt(arg.getBytes().length);
+        writer.writeNChar(arg.getBytes());
+      }
+    }
+    writer.writeShort(resultFormat.getValue());
+  }
+
+  @Override
+  public MessageType getType() {
+    return MessageType.FunctionCall;
+  }
+
+  public int getOid() {
+    return oid;
+  }
+}
@@ -0,0 +1,22 @@
+package org.jruby.pg.messages;
+
+public class FunctionCallResponse extends BackendMessage {
+  private final byte[] value;
+
+  public FunctionCallResponse(byte[] value) {
+    this.value = value;
+  }
+
+  @Override
+  public MessageType getType() {
+    return MessageType.FunctionCallResponse;
+  }
+
+  /**
+   * Return the result of the function call, null if the function
+   * returned NULL
+   */
+  public byte[] getValue() {
+    return value;
+  }
+}
@@ -1,6 +1,12 @@
 package org.jruby.pg.messages;
 
 public class NoData extends BackendMessage {
+  // the message has no content, the same instance is used for all
+  public static final NoData INSTANCE = new NoData();
+
+  private NoData() {
+  }
+
   @Override
   public MessageType getType() {
     return MessageType.NoData;
@@ -1,11 +1,9 @@
 package org.jruby.pg.messages;
 
-import java.util.Map;
-
 public class NoticeResponse extends ErrorResponse {
 
-  public NoticeResponse(Map<Byte, String> fields, int length) {
-    super(fields, length);
+  public NoticeResponse(int length) {
+    super(length);
   }
 
   @Override
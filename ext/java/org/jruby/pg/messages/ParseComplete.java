@@ -1,6 +1,12 @@
 package org.jruby.pg.messages;
 
 public class ParseComplete extends BackendMessage {
+  // the message has no content, the same instance is used for all
+  public static final ParseComplete INSTANCE = new ParseComplete();
+
+  private ParseComplete() {
+  }
+
   @Override
   public MessageType getType() {
     return MessageType.ParseComplete;
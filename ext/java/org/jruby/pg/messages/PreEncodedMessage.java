@@ -0,0 +1,50 @@
+package org.jruby.pg.messages;
+
+/**
+ * A message whose content never changes, it is encoded once and
+ * written with a single put
+ */
+public class PreEncodedMessage extends FrontendMessage {
+  public static final PreEncodedMessage SYNC =
+    new PreEncodedMessage(MessageType.Sync, new byte[0]);
+
+  // execute the unnamed portal without a row limit
+  public static final PreEncodedMessage EXECUTE_UNNAMED =
+    new PreEncodedMessage(MessageType.Execute, new byte[] {0, 0, 0, 0, 0});
+
+  public static final PreEncodedMessage DESCRIBE_UNNAMED_PORTAL =
+    new PreEncodedMessage(MessageType.Describe, new byte[] {'P', 0});
+
+  private final MessageType type;
+  private final byte[] content;
+  private final byte[] encoded;
+
+  private PreEncodedMessage(MessageType type, byte[] content) {
+    this.type = type;
+    this.content = content;
+
+    int length = content.length + 4;
+    encoded = new byte[length + 1];
+    encoded[0] = type.firstByte;
+    encoded[1] = (byte)(length >>> 24);
+    encoded[2] = (byte)(length >>> 16);
+    encoded[3] = (byte)(length >>> 8);
+    encoded[4] = (byte) length;
+    System.arraycopy(content, 0, encoded, 5, content.length);
+  }
+
+  @Override
+  public void write(ProtocolWriter writer) {
+    writer.writeEncoded(encoded);
+  }
+
+  @Override
+  public void writeInternal(ProtocolWriter writer) {
+    writer.writeNChar(content);
+  }
+
+  @Override
+  public MessageType getType() {
+    return type;
+  }
+}
@@ -0,0 +1,51 @@
+package org.jruby.pg.messages;
+
+/**
+ * A keepalive sent by the server in a CopyData message during
+ * streaming replication
+ */
+public class PrimaryKeepalive {
+  private final long walEnd;
+  private final long serverTime;
+  private final boolean replyRequested;
+
+  private PrimaryKeepalive(long walEnd, long serverTime, boolean replyRequested) {
+    this.walEnd = walEnd;
+    this.serverTime = serverTime;
+    this.replyRequested = replyRequested;
+  }
+
+  /**
+   * Parse the payload of a CopyData message starting with 'k'
+   */
+  public static PrimaryKeepalive parse(byte[] payload) {
+    if(payload.length < 18) {
+      throw new IllegalArgumentException("truncated keepalive message");
+    }
+    return new PrimaryKeepalive(StandbyStatusUpdate.getLong(payload, 1), StandbyStatusUpdate.getLong(payload, 9),
+                                payload[17] != 0);
+  }
+
+  /**
+   * Return the current end of WAL on the server
+   */
+  public long getWalEnd() {
+    return walEnd;
+  }
+
+  /**
+   * Return the time the message was sent, in microseconds since
+   * 2000-01-01 (the PostgreSQL epoch)
+   */
+  public long getServerTime() {
+    return serverTime;
+  }
+
+  /**
+   * Return true if the server wants a status update right away, it
+   * disconnects clients that don't reply before wal_sender_timeout
+   */
+  public boolean isReplyRequested() {
+    return replyRequested;
+  }
+}
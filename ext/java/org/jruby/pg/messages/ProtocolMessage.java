@@ -9,6 +9,9 @@ public abstract class ProtocolMessage {
     AuthenticationCryptPassword('R'),
     AuthenticationMD5Password('R'),
     AuthenticationSCMCredential('R'),
+    AuthenticationSASL('R'),
+    AuthenticationSASLContinue('R'),
+    AuthenticationSASLFinal('R'),
     BackendKeyData('K'),
     Bind('B'),
     BindComplete('2'),
@@ -19,6 +22,7 @@ public abstract class ProtocolMessage {
     CopyData('d'),
     CopyDone('c'),
     CopyFail('f'),
+    CopyBothResponse('W'),
     CopyInResponse('G'),
     CopyOutResponse('H'),
     DataRow('D'),
@@ -41,6 +45,8 @@ public abstract class ProtocolMessage {
     Query('Q'),
     ReadyForQuery('Z'),
     RowDescription('T'),
+    SASLInitialResponse('p'),
+    SASLResponse('p'),
     SSLRequest('\0'),
     StartupMessage('\0'),
     Sync('S'),
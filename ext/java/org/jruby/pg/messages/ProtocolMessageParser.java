@@ -1,7 +1,7 @@
 package org.jruby.pg.messages;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
 
 public class ProtocolMessageParser {
   public static ProtocolMessage parseMessage(ProtocolReader reader) {
@@ -29,6 +29,18 @@ public class ProtocolMessageParser {
         return new AuthenticationMD5Password(md5Salt);
       case 6:
         return new AuthenticationSCMCredential();
+      case 10:
+        List<String> mechanisms = new ArrayList<String>();
+        String mechanism;
+        while((mechanism = reader.getString()).length() > 0) {
+          mechanisms.add(mechanism);
+        }
+        return new AuthenticationSASL(mechanisms);
+      case 11:
+        // the length includes itself and the authentication type
+        return new AuthenticationSASLContinue(reader.getNChar(len - 8));
+      case 12:
+        return new AuthenticationSASLFinal(reader.getNChar(len - 8));
       default:
         throw new IllegalArgumentException("Unknown authentication type");
       }
@@ -53,18 +65,8 @@ public class ProtocolMessageParser {
 
     case 'D':
       int numberOfDataColumns = reader.getShort();
-      byte[][] data = new byte[numberOfDataColumns][];
-      for(int i = 0; i < numberOfDataColumns; i++) {
-        int byteLength = reader.getInt();
-        if(byteLength == -1) {
-          data[i] = null;
-        } else {
-          // create a new ByteBuffer that will share with `buf' the
-          // bytes constituting the value of the ith column
-          data[i] = reader.getNChar(byteLength);
-        }
-      }
-      return new DataRow(data, len);
+      // copy all the values at once, they share the same array
+      return new DataRow(numberOfDataColumns, reader.getNChar(len - 6), len);
 
     case 'K':
       int pid = reader.getInt();
@@ -74,18 +76,14 @@ public class ProtocolMessageParser {
     case 'E':
     case 'N':
       byte code;
-      Map<Byte, String> fields = new HashMap<Byte, String>();
+      ErrorResponse error = type == 'E' ? new ErrorResponse(len) : new NoticeResponse(len);
       while((code = reader.getByte()) != '\0') {
-        fields.put(code, reader.getString());
-      }
-      if(type == 'E') {
-        return new ErrorResponse(fields, len);
-      } else {
-        return new NoticeResponse(fields, len);
+        error.setField(code, reader.getString());
       }
+      return error;
 
     case 'C':
-      return new CommandComplete(reader.getString());
+      return reader.getCommandComplete();
 
     case 't':
       short length = reader.getShort();
@@ -96,10 +94,13 @@ public class ProtocolMessageParser {
       return new ParameterDescription(oids, len);
 
     case '1':
-      return new ParseComplete();
+      return ParseComplete.INSTANCE;
 
     case '2':
-      return new BindComplete();
+      return BindComplete.INSTANCE;
+
+    case '3':
+      return CloseComplete.INSTANCE;
 
     case 'A':
       pid = reader.getInt();
@@ -123,14 +124,27 @@ public class ProtocolMessageParser {
       }
       return new CopyOutResponse(overallFormat, formats);
 
+    case 'W':
+      overallFormat = Format.isBinary(reader.getByte()) ? Format.Binary : Format.Text;
+      numberOfFormats = reader.getShort();
+      formats = new Format[numberOfFormats];
+      for(int i = 0; i < numberOfFormats; i++) {
+        formats[i] = Format.isBinary(reader.getShort()) ? Format.Binary : Format.Text;
+      }
+      return new CopyBothResponse(overallFormat, formats);
+
     case 'd':
       return new CopyData(reader.getNChar(len - 4));
 
     case 'c':
-      return new CopyDone();
+      return CopyDone.INSTANCE;
 
     case 'n':
-      return new NoData();
+      return NoData.INSTANCE;
+
+    case 'V':
+      int resultLength = reader.getInt();
+      return new FunctionCallResponse(resultLength == -1 ? null : reader.getNChar(resultLength));
 
     case 'Z':
       byte transactionStatus = reader.getByte();
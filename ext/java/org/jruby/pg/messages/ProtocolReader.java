@@ -35,4 +35,11 @@ public interface ProtocolReader {
   * Returns the next n bytes
   */
   public byte[] getNChar(int len);
+
+  /**
+   * Returns the next null terminated string parsed as the tag of a
+   * CommandComplete. The previous message may be returned again if
+   * the tag is the same
+   */
+  public CommandComplete getCommandComplete();
 }
@@ -45,6 +45,12 @@ public interface ProtocolWriter {
    */
   public void writeNChar(byte[] b);
 
+  /**
+   * Write a complete message, i.e. its type, length and content,
+   * that was encoded beforehand
+   */
+  public void writeEncoded(byte[] message);
+
   /**
    * Determine the length of the message and prepare it to be sent
    * over the wire
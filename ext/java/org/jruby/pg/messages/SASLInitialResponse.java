@@ -0,0 +1,23 @@
+package org.jruby.pg.messages;
+
+public class SASLInitialResponse extends FrontendMessage {
+  private final String mechanism;
+  private final byte[] data;
+
+  public SASLInitialResponse(String mechanism, byte[] data) {
+    this.mechanism = mechanism;
+    this.data = data;
+  }
+
+  @Override
+  public void writeInternal(ProtocolWriter writer) {
+    writer.writeString(mechanism);
+    writer.writeInt(data.length);
+    writer.writeNChar(data);
+  }
+
+  @Override
+  public MessageType getType() {
+    return MessageType.SASLInitialResponse;
+  }
+}
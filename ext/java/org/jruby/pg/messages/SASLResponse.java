@@ -0,0 +1,19 @@
+package org.jruby.pg.messages;
+
+public class SASLResponse extends FrontendMessage {
+  private final byte[] data;
+
+  public SASLResponse(byte[] data) {
+    this.data = data;
+  }
+
+  @Override
+  public void writeInternal(ProtocolWriter writer) {
+    writer.writeNChar(data);
+  }
+
+  @Override
+  public MessageType getType() {
+    return MessageType.SASLResponse;
+  }
+}
@@ -0,0 +1,52 @@
+package org.jruby.pg.messages;
+
+/**
+ * The payload of the CopyData message a replication client sends to
+ * report its progress. The server may remove the WAL up to the flushed
+ * position
+ */
+public class StandbyStatusUpdate {
+  // the difference between the unix epoch and 2000-01-01 in
+  // microseconds
+  public static final long POSTGRES_EPOCH_MICROS = 946684800000000L;
+
+  private StandbyStatusUpdate() {
+  }
+
+  /**
+   * Encode a status update
+   *
+   * @param written the position of the last WAL byte received + 1
+   * @param flushed the position of the last WAL byte persisted + 1
+   * @param applied the position of the last WAL byte applied + 1
+   * @param clientTime the current time in milliseconds since the unix
+   *        epoch
+   * @param replyRequested whether the server should reply right away
+   */
+  public static byte[] encode(long written, long flushed, long applied, long clientTime,
+                              boolean replyRequested) {
+    byte[] payload = new byte[1 + 8 + 8 + 8 + 8 + 1];
+    payload[0] = 'r';
+    putLong(payload, 1, written);
+    putLong(payload, 9, flushed);
+    putLong(payload, 17, applied);
+    putLong(payload, 25, clientTime * 1000 - POSTGRES_EPOCH_MICROS);
+    payload[33] = (byte) (replyRequested ? 1 : 0);
+    return payload;
+  }
+
+  static long getLong(byte[] data, int offset) {
+    long value = 0;
+    for(int i = 0; i < 8; i++) {
+      value = value << 8 | (data[offset + i] & 0xff);
+    }
+    return value;
+  }
+
+  private static void putLong(byte[] data, int offset, long value) {
+    for(int i = 7; i >= 0; i--) {
+      data[offset + i] = (byte) value;
+      value >>>= 8;
+    }
+  }
+}
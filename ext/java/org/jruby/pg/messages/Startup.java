@@ -4,11 +4,15 @@ public class Startup extends FrontendMessage {
   private String user;
   private String database;
   private String options;
+  // null unless this is a replication connection, "database" for
+  // logical replication and "true" for physical replication
+  private String replication;
 
-  public Startup(String user, String database, String options) {
+  public Startup(String user, String database, String options, String replication) {
     this.user = user;
     this.database = database;
     this.options = options;
+    this.replication = replication;
   }
 
   @Override
@@ -25,6 +29,11 @@ public class Startup extends FrontendMessage {
       writer.writeString(options);
     }
 
+    if(replication != null) {
+      writer.writeString("replication");
+      writer.writeString(replication);
+    }
+
     writer.writeByte((char) 0);
   }
 
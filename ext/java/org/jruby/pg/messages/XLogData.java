@@ -0,0 +1,71 @@
+package org.jruby.pg.messages;
+
+/**
+ * A chunk of WAL (or logical decoding output) sent by the server in a
+ * CopyData message during streaming replication. The data isn't
+ * copied, it's a slice of the CopyData payload
+ */
+public class XLogData {
+  // 'w', the start, the end and the server time
+  private static final int HEADER_LENGTH = 1 + 8 + 8 + 8;
+
+  private final long walStart;
+  private final long walEnd;
+  private final long serverTime;
+  private final byte[] buffer;
+
+  private XLogData(long walStart, long walEnd, long serverTime, byte[] buffer) {
+    this.walStart = walStart;
+    this.walEnd = walEnd;
+    this.serverTime = serverTime;
+    this.buffer = buffer;
+  }
+
+  /**
+   * Parse the payload of a CopyData message starting with 'w'
+   */
+  public static XLogData parse(byte[] payload) {
+    if(payload.length < HEADER_LENGTH) {
+      throw new IllegalArgumentException("truncated XLogData message");
+    }
+    return new XLogData(StandbyStatusUpdate.getLong(payload, 1), StandbyStatusUpdate.getLong(payload, 9),
+                        StandbyStatusUpdate.getLong(payload, 17), payload);
+  }
+
+  /**
+   * Return the LSN of the start of the data
+   */
+  public long getWalStart() {
+    return walStart;
+  }
+
+  /**
+   * Return the current end of WAL on the server
+   */
+  public long getWalEnd() {
+    return walEnd;
+  }
+
+  /**
+   * Return the time the message was sent, in microseconds since
+   * 2000-01-01 (the PostgreSQL epoch)
+   */
+  public long getServerTime() {
+    return serverTime;
+  }
+
+  /**
+   * Return the array holding the data, it must not be modified
+   */
+  public byte[] getBuffer() {
+    return buffer;
+  }
+
+  public int getDataOffset() {
+    return HEADER_LENGTH;
+  }
+
+  public int getDataLength() {
+    return buffer.length - HEADER_LENGTH;
+  }
+}
@@ -70,6 +70,14 @@ describe PG::Connection do
       PG::Connection.escape_bytea(foo).should== "\\\\000"
     end
 
+    it 'unescapes bytea in both the hex and the escape format' do
+      PG::Connection.unescape_bytea("\\x00ff41").should == "\x00\xffA".force_encoding('BINARY')
+      PG::Connection.unescape_bytea("a\\\\b\\001\\377").should == "a\\b\x01\xff".force_encoding('BINARY')
+      bytes = (0..255).map(&:chr).join * 100
+      res = @conn.exec_params 'SELECT $1::bytea', [{ value: bytes, format: 1 }]
+      PG::Connection.unescape_bytea(res.getvalue(0, 0)).should == bytes
+    end
+
     it 'handles NULL columns properly' do
       res = @conn.exec 'VALUES (NULL)'
       res.getvalue( 0, 0 ).should be_nil
@@ -176,6 +184,28 @@ describe PG::Connection do
       @conn.prepare 'insert_query', 'INSERT INTO FOO VALUES ($1)'
       res = @conn.exec_prepared 'insert_query', ['baz']
     end
+
+    it 'returns the same description when a statement is executed again' do
+      @conn.prepare 'repeated', 'SELECT $1::int4 AS n, $1::text AS t'
+      3.times do |i|
+        res = @conn.exec_prepared 'repeated', [i]
+        res.fields.should== ['n', 't']
+        res.ftype(0).should== 23
+        res.values.should== [[i.to_s, i.to_s]]
+      end
+      res = @conn.exec_prepared 'repeated', [7], 1
+      res.fformat(0).should== 1
+      res.getvalue(0, 0).should== [7].pack('N')
+      @conn.describe_prepared('repeated').nfields.should== 2
+    end
+
+    it 'describes a statement again after it is deallocated' do
+      @conn.prepare 'reprepared', 'SELECT 1 AS n'
+      @conn.exec_prepared('reprepared').fields.should== ['n']
+      @conn.exec 'DEALLOCATE reprepared'
+      @conn.prepare 'reprepared', 'SELECT 1 AS a, 2 AS b'
+      @conn.exec_prepared('reprepared').fields.should== ['a', 'b']
+    end
   end
 
   describe 'error handling' do
@@ -190,6 +220,108 @@ describe PG::Connection do
         res = @conn.exec 'SELECT 1 / 0 AS n'
       }.to raise_error(PGError, /by zero/)
     end
+
+    it 'should fail results bigger than max_result_size' do
+      conn = PG.connect "#{@conninfo} max_result_size=1000"
+      begin
+        expect {
+          conn.exec 'select * from generate_series(1, 10000)'
+        }.to raise_error(PGError, /max_result_size/)
+
+        # the connection is still usable
+        expect(conn.exec('select 1').getvalue(0, 0)).to eq('1')
+      ensure
+        conn.close
+      end
+    end
+
+    it 'should spill results bigger than spill_threshold to disk' do
+      conn = PG.connect "#{@conninfo} spill_threshold=1000 spill_directory=#{TEST_DIRECTORY}"
+      begin
+        open_files = Java::OrgJrubyPgInternal::ResultSet.open_spill_files
+        res = conn.exec 'select i, md5(i::text) from generate_series(1, 10000) as i'
+        expect(res).to be_spilled
+        expect(Java::OrgJrubyPgInternal::ResultSet.open_spill_files).to eq(open_files + 1)
+        expect(res.ntuples).to eq(10000)
+        expect(res.getvalue(9999, 0)).to eq('10000')
+        expect(res.values.first).to eq(['1', 'c4ca4238a0b923820dcc509a6f75849b'])
+        expect(res.map { |row| row['i'] }.last).to eq('10000')
+        res.clear
+        expect(res).not_to be_spilled
+        expect(Java::OrgJrubyPgInternal::ResultSet.open_spill_files).to eq(open_files)
+      ensure
+        conn.close
+      end
+    end
+
+    it 'should close the spill file of a result that was not cleared' do
+      conn = PG.connect "#{@conninfo} spill_threshold=1000 spill_directory=#{TEST_DIRECTORY}"
+      begin
+        open_files = Java::OrgJrubyPgInternal::ResultSet.open_spill_files
+        3.times do
+          expect(conn.exec('select i, md5(i::text) from generate_series(1, 10000) as i')).to be_spilled
+        end
+        expect(Java::OrgJrubyPgInternal::ResultSet.open_spill_files).to be > open_files
+        20.times do
+          break if Java::OrgJrubyPgInternal::ResultSet.open_spill_files == open_files
+          java.lang.System.gc
+          sleep 0.1
+        end
+        expect(Java::OrgJrubyPgInternal::ResultSet.open_spill_files).to eq(open_files)
+      ensure
+        conn.close
+      end
+    end
+
+    it 'should reject boolean options it does not recognize' do
+      %w[read_ahead dictionary_encoding error_backtrace replication].each do |name|
+        expect {
+          PG.connect "#{@conninfo} #{name}=maybe"
+        }.to raise_error(PGError, /invalid #{name} value: "maybe"/)
+      end
+      conn = PG.connect "#{@conninfo} read_ahead=no dictionary_encoding=yes error_backtrace=On"
+      conn.close
+    end
+
+    it 'should raise errors without a backtrace with error_backtrace=off' do
+      conn = PG.connect "#{@conninfo} error_backtrace=off"
+      begin
+        conn.exec 'create temporary table unique_test (id int primary key)'
+        conn.exec 'insert into unique_test values (1)'
+        2.times do
+          error = nil
+          begin
+            conn.exec 'insert into unique_test values (1)'
+          rescue PG::UniqueViolation => e
+            error = e
+          end
+          expect(error).not_to be_nil
+          expect(error.backtrace).to eq([])
+          expect(error.message).to match(/duplicate key/)
+          expect(error.result.error_field(PG::PG_DIAG_SQLSTATE)).to eq('23505')
+          expect(error.result.error_field(PG::PG_DIAG_CONSTRAINT_NAME)).to eq('unique_test_pkey')
+        end
+      ensure
+        conn.close
+      end
+    end
+
+    it 'should read the socket in the background with read_ahead' do
+      conn = PG.connect "#{@conninfo} read_ahead=on max_buffer_size=16384"
+      begin
+        query = 'select i, repeat(md5(i::text), 10) from generate_series(1, 20000) as i'
+        2.times do
+          res = conn.exec query
+          expect(res.ntuples).to eq(20000)
+          expect(res.getvalue(19999, 0)).to eq('20000')
+        end
+        conn.send_query 'select 1'
+        expect(IO.select([conn.socket_io], nil, nil, 5)).not_to be_nil
+        expect(conn.get_last_result.getvalue(0, 0)).to eq('1')
+      ensure
+        conn.close
+      end
+    end
   end
 
   describe 'query cancelling' do
@@ -209,6 +341,21 @@ describe PG::Connection do
       @conn.exec 'ROLLBACK'
     end
 
+    it 'cancels queries that run past their timeout' do
+      @conn.exec 'ROLLBACK'
+      start = Time.now
+      expect {
+        @conn.exec 'SELECT pg_sleep(10)', :timeout => 0.2
+      }.to raise_error(PGError, /cancel/)
+      (Time.now - start).should < 2
+      @conn.exec('SELECT 1').getvalue(0, 0).should == '1'
+    end
+
+    it 'does not cancel queries that finish before their timeout' do
+      res = @conn.exec 'SELECT $1::text AS n', ['foo'], 0, :timeout => 5
+      res[0]['n'].should == 'foo'
+    end
+
     it "described_class#block should allow a timeout" do
       @conn.send_query( "select pg_sleep(3)" )
 
@@ -244,6 +391,30 @@ describe PG::Connection do
       }.to raise_error(PG::ConnectionBad, /no password supplied/)
     end
 
+    it 'skips hosts that cannot be reached' do
+      conn = PG.connect "host=127.0.0.1,127.0.0.1 port=1,#{@port} dbname=test"
+      conn.port.should == @port
+      conn.finish
+    end
+
+    it 'reports the errors of all the hosts' do
+      expect {
+        PG.connect "host=127.0.0.1,127.0.0.1 port=#{@port},#{@port} dbname=test target_session_attrs=standby"
+      }.to raise_error(PG::ConnectionBad, /port #{@port} failed: server is not in hot standby mode.*\n.*port #{@port} failed/)
+    end
+
+    it 'falls back to the primary with target_session_attrs=prefer-standby' do
+      conn = PG.connect "#{@conninfo} target_session_attrs=prefer-standby"
+      conn.exec('select pg_is_in_recovery()').getvalue(0, 0).should == 'f'
+      conn.finish
+    end
+
+    it 'connects to the server using a unix domain socket' do
+      conn = PG.connect "host=#{TEST_DIRECTORY} port=#{@port} dbname=test"
+      conn.exec('select 1').getvalue(0, 0).should == '1'
+      conn.finish
+    end
+
     it 'connects to the server using ssl' do
       @conn.exec 'ROLLBACK'
       begin
@@ -255,6 +426,28 @@ describe PG::Connection do
       conn.finish
     end
 
+    it 'rejects direct ssl negotiation with a weak sslmode' do
+      expect {
+        PG.connect "#{@conninfo} sslmode=prefer sslnegotiation=direct"
+      }.to raise_error(PG::ConnectionBad, /weak sslmode/)
+    end
+
+    it 'reports the ssl handshakes of the connection' do
+      @conn.exec 'ROLLBACK'
+      begin
+        @conn.exec "CREATE USER ssl WITH PASSWORD 'secret'"
+      rescue
+        # ignore
+      end
+      # the server disables session caching, every handshake is a full one
+      conn = PG.connect "#{@conninfo} user=ssl password=secret sslmode=require"
+      conn.ssl_handshake_stats.should == {:full => 1, :resumed => 0}
+      conn.finish
+      conn = PG.connect "#{@conninfo} sslmode=disable"
+      conn.ssl_handshake_stats.should == {:full => 0, :resumed => 0}
+      conn.finish
+    end
+
     it 'can authenticate clients using the md5 hash' do
       @conn.exec 'ROLLBACK'
       begin
@@ -332,6 +525,228 @@ describe PG::Connection do
         @conn.lo_read(fd, 10).should ==('foo')
       end
     end
+
+    it "imports and exports large objects" do
+      require 'tempfile'
+      # several chunks with a partial one at the end
+      data = (0...(1024 * 1024 + 123)).map { |i| (i % 251).chr }.join
+      source = Tempfile.new('lo_import')
+      source.binmode
+      source.write(data)
+      source.close
+      target = Tempfile.new('lo_export')
+      target.close
+
+      @conn.transaction do
+        oid = @conn.lo_import(source.path)
+        fd = @conn.lo_open(oid, PG::INV_READ)
+        @conn.lo_lseek(fd, 0, PG::SEEK_END).should == data.bytesize
+        @conn.lo_close(fd)
+        @conn.lo_export(oid, target.path)
+      end
+      File.binread(target.path).should == data
+
+      source.unlink
+      target.unlink
+    end
+  end
+
+  describe 'notices' do
+    it 'delivers notices after the result and rate limits them' do
+      conn = PG.connect "#{@conninfo} notice_rate_limit=5"
+      begin
+        conn.exec 'SET client_min_messages TO notice'
+        messages = []
+        conn.set_notice_receiver { |result| messages << result.error_message }
+        conn.exec %{DO $$ BEGIN FOR i IN 1..100 LOOP RAISE NOTICE 'row %', i; END LOOP; END $$}
+        messages.size.should == 5
+        messages.first.should =~ /row 1\b/
+        conn.notice_stats.should == {:received => 100, :delivered => 5, :dropped => 0, :rate_limited => 95}
+      ensure
+        conn.close
+      end
+    end
+
+    it 'drops the oldest notices when notice_queue_size is exceeded' do
+      conn = PG.connect "#{@conninfo} notice_queue_size=10"
+      begin
+        conn.exec 'SET client_min_messages TO notice'
+        messages = []
+        conn.set_notice_processor { |message| messages << message }
+        conn.exec %{DO $$ BEGIN FOR i IN 1..100 LOOP RAISE NOTICE 'row %', i; END LOOP; END $$}
+        messages.size.should == 10
+        messages.last.should =~ /row 100\b/
+        conn.notice_stats[:dropped].should == 90
+      ensure
+        conn.close
+      end
+    end
+  end
+
+  describe 'replication' do
+    it 'streams logical decoding output and acknowledges it', :without_transaction do
+      conn = PG.connect "#{@conninfo} replication=database"
+      begin
+        conn.exec 'CREATE_REPLICATION_SLOT jruby_pg_slot TEMPORARY LOGICAL test_decoding'
+        @conn.exec 'CREATE TABLE replication_test (i int)'
+        @conn.exec 'INSERT INTO replication_test VALUES (42)'
+
+        res = conn.exec 'START_REPLICATION SLOT jruby_pg_slot LOGICAL 0/0'
+        res.result_status.should == PG::PGRES_COPY_BOTH
+        stream = conn.replication_stream(:status_interval => 0.1)
+        changes = []
+        stream.each do |data, lsn|
+          changes << data
+          stream.acknowledge(lsn)
+          break if data =~ /INSERT/
+        end
+        changes.last.should =~ /replication_test: INSERT: i\[integer\]:42/
+        stream.flushed_lsn.should > 0
+        PG::ReplicationStream.format_lsn(stream.flushed_lsn).should =~ %r{\A\h+/\h+\z}
+        stream.close
+        conn.get_last_result
+        conn.exec('IDENTIFY_SYSTEM').ntuples.should == 1
+      ensure
+        conn.close
+        @conn.exec 'DROP TABLE IF EXISTS replication_test'
+      end
+    end
+
+    it 'decodes pgoutput changes one transaction at a time', :without_transaction do
+      @conn.exec 'CREATE TABLE pgoutput_test (id int PRIMARY KEY, name text, ok boolean)'
+      @conn.exec 'CREATE PUBLICATION jruby_pg_pub FOR TABLE pgoutput_test'
+      conn = PG.connect "#{@conninfo} replication=database"
+      begin
+        conn.exec 'CREATE_REPLICATION_SLOT jruby_pg_pgoutput TEMPORARY LOGICAL pgoutput'
+        @conn.exec "INSERT INTO pgoutput_test VALUES (1, 'one', true), (2, 'two', false)"
+        @conn.exec 'UPDATE pgoutput_test SET name = NULL WHERE id = 1'
+        @conn.exec 'DELETE FROM pgoutput_test WHERE id = 2'
+
+        conn.exec "START_REPLICATION SLOT jruby_pg_pgoutput LOGICAL 0/0 " +
+                  "(proto_version '1', publication_names 'jruby_pg_pub')"
+        stream = conn.replication_stream
+        transactions = []
+        stream.each_transaction do |transaction|
+          transactions << transaction
+          stream.acknowledge transaction[:end_lsn]
+          break if transactions.size == 3
+        end
+        transactions.map { |t| t[:changes].map { |c| c[:type] } }.should == [[:insert, :insert], [:update], [:delete]]
+        insert = transactions[0][:changes][0]
+        insert[:schema].should == 'public'
+        insert[:table].should == 'pgoutput_test'
+        insert[:new].should == {'id' => 1, 'name' => 'one', 'ok' => true}
+        transactions[1][:changes][0][:new]['name'].should be_nil
+        transactions[2][:changes][0][:old]['id'].should == 2
+        stream.close
+        conn.get_last_result
+      ensure
+        conn.close
+        @conn.exec 'DROP PUBLICATION IF EXISTS jruby_pg_pub'
+        @conn.exec 'DROP TABLE IF EXISTS pgoutput_test'
+      end
+    end
+
+    it 'yields large transactions in partial batches', :without_transaction do
+      @conn.exec 'CREATE TABLE pgoutput_batch_test (id int PRIMARY KEY)'
+      @conn.exec 'CREATE PUBLICATION jruby_pg_batch_pub FOR TABLE pgoutput_batch_test'
+      conn = PG.connect "#{@conninfo} replication=database"
+      begin
+        conn.exec 'CREATE_REPLICATION_SLOT jruby_pg_batch TEMPORARY LOGICAL pgoutput'
+        @conn.exec 'INSERT INTO pgoutput_batch_test SELECT generate_series(1, 5)'
+
+        conn.exec "START_REPLICATION SLOT jruby_pg_batch LOGICAL 0/0 " +
+                  "(proto_version '1', publication_names 'jruby_pg_batch_pub')"
+        stream = conn.replication_stream(:max_changes => 2)
+        batches = []
+        stream.each_transaction do |batch|
+          batches << batch
+          break unless batch[:partial]
+        end
+        batches.map { |b| b[:changes].size }.should == [2, 2, 1]
+        batches.map { |b| b[:partial] }.should == [true, true, false]
+        batches.map { |b| b[:xid] }.uniq.size.should == 1
+        batches[0][:end_lsn].should be_nil
+        batches[2][:end_lsn].should > 0
+        batches.flat_map { |b| b[:changes].map { |c| c[:new]['id'] } }.should == [1, 2, 3, 4, 5]
+        stream.close
+        conn.get_last_result
+      ensure
+        conn.close
+        @conn.exec 'DROP PUBLICATION IF EXISTS jruby_pg_batch_pub'
+        @conn.exec 'DROP TABLE IF EXISTS pgoutput_batch_test'
+      end
+    end
+
+    it 'can be closed after the server ended the stream with an error', :without_transaction do
+      conn = PG.connect "#{@conninfo} replication=database"
+      begin
+        conn.exec 'CREATE_REPLICATION_SLOT jruby_pg_error_slot TEMPORARY LOGICAL pgoutput'
+        conn.exec "START_REPLICATION SLOT jruby_pg_error_slot LOGICAL 0/0 " +
+                  "(proto_version '1', publication_names 'jruby_pg_error_pub')"
+        stream = conn.replication_stream(:status_interval => 0.1)
+
+        # the walsender sends a FATAL error and closes the connection
+        @conn.exec "SELECT pg_terminate_backend(#{conn.backend_pid})"
+        stream.read(5).should be_nil
+        stream.should be_done
+        expect { stream.close }.not_to raise_error
+        expect { conn.get_last_result }.to raise_error(PG::Error)
+        conn.status.should == PG::CONNECTION_BAD
+      ensure
+        conn.close
+      end
+    end
+  end
+
+  describe 'notification hub' do
+    before(:each) do
+      @hub = PG::NotificationHub.new(@conninfo, :coalesce_window => 1.0, :queue_size => 2)
+    end
+
+    after(:each) do
+      @hub.close
+    end
+
+    it 'delivers notifications to every subscriber of a channel', :without_transaction do
+      first = @hub.subscribe 'hub_channel'
+      second = @hub.subscribe 'hub_channel'
+      sleep 0.1
+      @conn.exec %{NOTIFY hub_channel, 'foo'}
+      first.wait_for_notify(5)[:extra].should == 'foo'
+      second.wait_for_notify(5)[:extra].should == 'foo'
+    end
+
+    it 'coalesces duplicate payloads', :without_transaction do
+      sub = @hub.subscribe 'hub_channel'
+      sleep 0.1
+      @conn.exec %{NOTIFY hub_channel, 'foo'}
+      @conn.exec %{NOTIFY hub_channel, 'foo'}
+      sub.wait_for_notify(5)[:extra].should == 'foo'
+      sub.wait_for_notify(0.2).should be_nil
+    end
+
+    it 'drops the oldest notifications when the queue is full', :without_transaction do
+      sub = @hub.subscribe 'hub_channel'
+      sleep 0.1
+      %w[a b c].each {|payload| @conn.exec "NOTIFY hub_channel, '#{payload}'" }
+      sleep 0.5
+      sub.dropped.should == 1
+      sub.notifies[:extra].should == 'b'
+      sub.notifies[:extra].should == 'c'
+    end
+
+    it 'wakes subscribers with an error when a listener is terminated', :without_transaction do
+      sub = @hub.subscribe 'hub_channel'
+      sleep 0.1
+      res = @conn.exec %{SELECT pg_terminate_backend(pid) FROM pg_stat_activity
+                         WHERE query = 'LISTEN "hub_channel"' AND pid <> pg_backend_pid()}
+      res.ntuples.should == 1
+      expect {
+        sub.wait_for_notify(5)
+      }.to raise_error(PG::ConnectionBad)
+      @hub.error_message.should_not be_nil
+    end
   end
 
   describe 'COPY operations' do
@@ -359,3 +774,28 @@ describe PG::Connection do
     end
   end
 end
+
+describe 'SCRAM-SHA-256' do
+  # the example exchange of RFC 7677, section 3
+  let(:server_first) { 'r=rOprNGfwEbeRWgbNEkqO%hvYDpWUa2RaTCAfuxFIlj)hNlF$k0,s=W22ZaJ0SNY7soEsUEjb6gQ==,i=4096' }
+  let(:scram) { Java::OrgJrubyPgInternal::ScramSha256.new('user', 'pencil', 'rOprNGfwEbeRWgbNEkqO', 'user') }
+
+  it 'computes the client proof of the RFC 7677 example' do
+    String.from_java_bytes(scram.client_first_message).should == 'n,,n=user,r=rOprNGfwEbeRWgbNEkqO'
+    client_final = String.from_java_bytes(scram.client_final_message(server_first.to_java_bytes))
+    client_final.should == 'c=biws,r=rOprNGfwEbeRWgbNEkqO%hvYDpWUa2RaTCAfuxFIlj)hNlF$k0,' +
+                           'p=dHzbZapWIk4jUhN+Ute9ytag9zjfMHgsqmmiz7AndVQ='
+  end
+
+  it 'verifies the server signature of the RFC 7677 example' do
+    scram.client_final_message(server_first.to_java_bytes)
+    scram.verify_server_final('v=6rriTRBi23WpRR/wtup+mMhUZUn/dB5nLTJRsjl95G4='.to_java_bytes)
+  end
+
+  it 'rejects a bad server signature' do
+    scram.client_final_message(server_first.to_java_bytes)
+    expect {
+      scram.verify_server_final('v=AAAATRBi23WpRR/wtup+mMhUZUn/dB5nLTJRsjl95G4='.to_java_bytes)
+    }.to raise_error(java.io.IOException, /incorrect server signature/)
+  end
+end
@@ -50,6 +50,15 @@ describe PG::Result do
     res.cmd_tuples.should == 2
   end
 
+  it 'returns the number of rows affected by UPDATE and returned by SELECT' do
+    @conn.exec 'CREATE TABLE FOO (BAR INT)'
+    @conn.exec 'INSERT INTO FOO SELECT generate_series(1, 3)'
+    3.times do
+      @conn.exec('UPDATE FOO SET BAR = BAR + 1').cmd_tuples.should == 3
+    end
+    @conn.exec('SELECT * FROM FOO').cmd_tuples.should == 3
+  end
+
   it 'nfields return the correct number of columns' do
     res = @conn.exec 'SELECT 1 as n'
     res.nfields.should== 1
@@ -88,4 +97,65 @@ describe PG::Result do
     res = @conn.exec "VALUES ('#{@conn.escape value}')"
     res.getvalue(0, 0).should== value
   end
+
+  it 'returns the same frozen string every time a value is accessed' do
+    res = @conn.exec "VALUES ('foo', NULL), ('bar', 'baz')"
+    value = res.getvalue(1, 0)
+    value.should be_frozen
+    res.values[1][0].should equal(value)
+    res[1]['column1'].should equal(value)
+    res.column_values(0)[1].should equal(value)
+    res.getvalue(0, 1).should be_nil
+  end
+
+  it 'shares the strings of repeated values when dictionary encoding is on' do
+    conn = PG.connect "#{@conninfo} dictionary_encoding=1"
+    begin
+      res = conn.exec "SELECT (ARRAY['new', 'paid', NULL])[i % 3 + 1] AS status FROM generate_series(0, 299) AS i"
+      statuses = res.column_values(0)
+      statuses.compact.map(&:object_id).uniq.size.should == 2
+      statuses.count(nil).should == 100
+      res.getvalue(3, 0).should equal(res.getvalue(0, 0))
+      res.getvalue(0, 0).should == 'new'
+    ensure
+      conn.close
+    end
+  end
+
+  it 'builds the same values in parallel above parallel_decode_threshold' do
+    query = "SELECT i, md5(i::text), CASE WHEN i % 7 = 0 THEN NULL ELSE 'x' END FROM generate_series(1, 20000) AS i"
+    expected = @conn.exec(query).values
+    conn = PG.connect "#{@conninfo} parallel_decode_threshold=1000"
+    begin
+      res = conn.exec query
+      values = res.values
+      values.should == expected
+      values[9999][1].should equal(res.getvalue(9999, 1))
+    ensure
+      conn.close
+    end
+  end
+
+  it 'returns numeric and boolean columns as Java arrays' do
+    res = @conn.exec "VALUES (1::int8, 1.5::float8, true), (NULL, -2.25, false), (-3, NULL, NULL)"
+    values, nulls = res.column_as_java(0)
+    values.to_a.should == [1, 0, -3]
+    nulls.get(1).should be_true
+    nulls.cardinality.should == 1
+
+    values, nulls = res.column_as_java(1)
+    values.to_a.should == [1.5, -2.25, 0.0]
+    nulls.get(2).should be_true
+
+    values, nulls = res.column_as_java(2)
+    values.to_a.should == [true, false, false]
+    nulls.get(2).should be_true
+
+    res = @conn.exec_params "SELECT $1::int4", [42], 1
+    res.column_as_java(0).first.to_a.should == [42]
+
+    expect {
+      @conn.exec("SELECT 'foo'::text").column_as_java(0)
+    }.to raise_error(ArgumentError)
+  end
 end